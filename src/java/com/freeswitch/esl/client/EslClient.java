@@ -18,23 +18,42 @@ package com.freeswitch.esl.client;
 import com.freeswitch.esl.client.handler.EslClientHandler;
 import com.freeswitch.esl.client.handler.EslConnectionFailure;
 import com.freeswitch.esl.client.handler.EslPipelineFactory;
+import com.freeswitch.esl.client.internal.AbstractEslClientHandler;
+import com.freeswitch.esl.client.internal.BackgroundJobRegistry;
+import com.freeswitch.esl.client.internal.EslEventRouter;
 import com.freeswitch.esl.client.internal.IEslProtocolListener;
+import com.freeswitch.esl.client.internal.SerialExecutor;
 import com.freeswitch.esl.transport.CommandResponse;
+import com.freeswitch.esl.transport.EslCommand;
 import com.freeswitch.esl.transport.SendMsg;
 import com.freeswitch.esl.transport.event.EslEvent;
 import com.freeswitch.esl.transport.message.EslMessage;
+import com.freeswitch.esl.transport.message.EslWriteCoalescer;
 import com.freeswitch.netty.bootstrap.ClientBootstrap;
 import com.freeswitch.netty.channel.Channel;
 import com.freeswitch.netty.channel.ChannelFuture;
+import com.freeswitch.netty.channel.ChannelFutureListener;
+import com.freeswitch.netty.channel.ChannelHandler;
 import com.freeswitch.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import com.freeswitch.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+import com.freeswitch.netty.util.HashedWheelTimer;
+import com.freeswitch.netty.util.Timeout;
+import com.freeswitch.netty.util.Timer;
+import com.freeswitch.netty.util.TimerTask;
+import com.freeswitch.netty.util.internal.ExecutorUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * Entry point to connect to a running FreeSWITCH Event Socket Library module,
@@ -47,6 +66,21 @@ import java.util.concurrent.atomic.AtomicInteger;
  * <p>
  * See <a href=
  * "http://wiki.freeswitch.org/wiki/Mod_event_socket">http://wiki.freeswitch.org/wiki/Mod_event_socket</a>
+ * <p>
+ * Each command has a blocking form and a non-blocking form, with an
+ * {@code Async} suffix, that returns a {@link CompletableFuture} completed
+ * when the server's reply arrives. The reply is matched to its command on the
+ * IO thread, but the future is completed on a separate reply executor, so its
+ * dependent stages may block, even on another command of this client. The
+ * blocking forms wait on the same future, and fail if called on an IO
+ * thread.
+ * <p>
+ * The futures are completed one at a time, in the order the replies arrived,
+ * until a dependent stage waits for another reply, through a blocking form or
+ * the future's {@code get} or {@code join}; the later futures are then
+ * completed alongside that stage. As replies do not pass through the event
+ * executor, a future may be completed before an event that arrived ahead of
+ * its reply has reached the listeners.
  *
  * @author david varnes
  */
@@ -54,37 +88,47 @@ public class EslClient {
     private final Logger log = LoggerFactory.getLogger(this.getClass());
 
     private final List<IEslEventListener> eventListeners = new CopyOnWriteArrayList<IEslEventListener>();
-    private final Executor eventListenerExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
-        AtomicInteger threadNumber = new AtomicInteger(1);
-
-        public Thread newThread(Runnable r) {
-            return new Thread(r, "EslEventNotifier-" + threadNumber.getAndIncrement());
-        }
-    });
-    private final Executor backgroundJobListenerExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    private final EslRuntime runtime;
+    private final Executor eventListenerExecutor;
+    private final Executor backgroundJobListenerExecutor;
+    private final BackgroundJobRegistry backgroundJobs;
+    private final EslEventRouter eventRouter = new EslEventRouter();
+    private volatile EslEventDispatcher eventDispatcher;
+    private volatile EslEventRingBuffer eventRingBuffer;
+    private volatile EslEventQueue eventQueue;
+    private static final Timer defaultTimer = new HashedWheelTimer(new ThreadFactory() {
         AtomicInteger threadNumber = new AtomicInteger(1);
 
         public Thread newThread(Runnable r) {
-            return new Thread(r, "EslBackgroundJobNotifier-" + threadNumber.getAndIncrement());
+            Thread thread = new Thread(r, "EslClientTimer-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
         }
     });
     ClientBootstrap bootstrap;
-    private AtomicBoolean authenticatorResponded = new AtomicBoolean(false);
-    private boolean authenticated;
-    private CommandResponse authenticationResponse;
+    private volatile CompletableFuture<Void> authentication;
+    private volatile boolean authenticated;
     /*
      * Internal observer of the ESL protocol
      */
     private final IEslProtocolListener protocolListener = new IEslProtocolListener() {
         public void authResponseReceived(CommandResponse response) {
-            authenticatorResponded.set(true);
             authenticated = response.isOk();
-            authenticationResponse = response;
             log.debug("Auth response success={}, message=[{}]", authenticated, response.getReplyText());
+            CompletableFuture<Void> authentication = EslClient.this.authentication;
+            if (authentication == null) {
+                return;
+            }
+            if (authenticated) {
+                authentication.complete(null);
+            } else {
+                authentication.completeExceptionally(new EslConnectionFailure("Authentication failed: " + response.getReplyText()));
+            }
         }
 
         public void eventReceived(final EslEvent event) {
 //			log.debug("Event received [{}]", event);
+            lastEventNanos = System.nanoTime();
             /*
 			 * Notify listeners in a different thread in order to: - not to
 			 * block the IO threads with potentially long-running listeners -
@@ -92,8 +136,26 @@ public class EslClient {
 			 * different worker thread pool for async job results than for event
 			 * driven events to keep the latency as low as possible.
 			 */
-            if (event.getEventName().equals("BACKGROUND_JOB")) {
-                for (final IEslEventListener listener : eventListeners) {
+            boolean jobResult = event.getEventName().equals("BACKGROUND_JOB");
+            if (jobResult) {
+                backgroundJobs.complete(event);
+            }
+            EslEventRingBuffer ring = eventRingBuffer;
+            EslEventDispatcher dispatcher = eventDispatcher;
+            EslEventQueue queue = eventQueue;
+            if (ring != null) {
+                ring.publish(event);
+            } else if (queue != null) {
+                queue.offer(event, channel);
+            } else if (dispatcher != null) {
+                // ordered per call, calls in parallel
+                dispatcher.dispatch(event, new Runnable() {
+                    public void run() {
+                        notifyListeners(event);
+                    }
+                });
+            } else if (jobResult) {
+                for (final IEslEventListener listener : listenersOf(event)) {
                     backgroundJobListenerExecutor.execute(new Runnable() {
                         public void run() {
                             try {
@@ -105,7 +167,7 @@ public class EslClient {
                     });
                 }
             } else {
-                for (final IEslEventListener listener : eventListeners) {
+                for (final IEslEventListener listener : listenersOf(event)) {
                     eventListenerExecutor.execute(new Runnable() {
                         public void run() {
                             try {
@@ -121,24 +183,325 @@ public class EslClient {
 
         public void disconnected() {
             log.info("Disconnected ..");
+            // their events will not come on another connection
+            backgroundJobs.failAll(new ClosedChannelException());
+            // not while a new connection is being made or already made
+            if (autoReconnect && reconnectWanted && !canSend() && reconnecting.compareAndSet(false, true)) {
+                disconnectedNanos = System.nanoTime();
+                scheduleReconnect(0);
+            }
         }
     };
-    private Channel channel;
+    private volatile Channel channel;
     private String host;
     private int port;
     private String password;
     private int timeoutSeconds;
+    private int maxCommandsInFlight = Integer.MAX_VALUE;
+    private volatile long commandTimeoutMillis;
+
+    private volatile boolean autoReconnect;
+    private volatile long reconnectInitialDelayMillis = 100;
+    private volatile long reconnectMaxDelayMillis = TimeUnit.SECONDS.toMillis(30);
+    // set once connected, until the connection is closed on purpose
+    private volatile boolean reconnectWanted;
+    private final AtomicBoolean reconnecting = new AtomicBoolean();
+    private final AtomicInteger reconnectCount = new AtomicInteger();
+    private volatile long disconnectedNanos;
+    private volatile long lastOutageMillis;
+    private volatile long lastEventNanos = System.nanoTime();
+    // the state of the connection that is restored on a reconnect
+    private volatile EslCommand eventSubscription;
+    private final List<EslCommand> eventFilters = new CopyOnWriteArrayList<EslCommand>();
+    private volatile EslCommand loggingLevel;
+
+    /**
+     * Create a client with its own IO and notifier threads.
+     */
+    public EslClient() {
+        this(null);
+    }
+
+    /**
+     * Create a client that uses the threads and timer of a shared runtime.
+     *
+     * @param runtime shared by many clients, or null for a client with its own
+     *                threads
+     */
+    public EslClient(EslRuntime runtime) {
+        this.runtime = runtime;
+        this.backgroundJobs = new BackgroundJobRegistry(timer());
+        if (runtime != null) {
+            // keep the notifications of this client in order on the shared pool
+            eventListenerExecutor = new SerialExecutor(runtime.getEventExecutor());
+            backgroundJobListenerExecutor = new SerialExecutor(runtime.getEventExecutor());
+        } else {
+            eventListenerExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                AtomicInteger threadNumber = new AtomicInteger(1);
+
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "EslEventNotifier-" + threadNumber.getAndIncrement());
+                }
+            });
+            backgroundJobListenerExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                AtomicInteger threadNumber = new AtomicInteger(1);
+
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "EslBackgroundJobNotifier-" + threadNumber.getAndIncrement());
+                }
+            });
+        }
+    }
 
     public boolean canSend() {
         return channel != null && channel.isConnected() && authenticated;
     }
 
+    /**
+     * Limit the number of commands that are written to the server and
+     * awaiting a reply at one time. Commands are pipelined on the one
+     * connection up to this limit, further commands are held back until
+     * replies arrive. Unbounded by default.
+     *
+     * @param maxCommandsInFlight the window size, at least 1
+     */
+    public void setMaxCommandsInFlight(int maxCommandsInFlight) {
+        if (maxCommandsInFlight < 1) {
+            throw new IllegalArgumentException("maxCommandsInFlight must be at least 1: " + maxCommandsInFlight);
+        }
+        this.maxCommandsInFlight = maxCommandsInFlight;
+        Channel channel = this.channel;
+        if (channel != null) {
+            ((EslClientHandler) channel.getPipeline().getLast()).setMaxInFlight(maxCommandsInFlight);
+        }
+    }
+
+    /**
+     * Fail the future of a command, or throw from the blocking form, if the
+     * server has not replied in time. Without a timeout, a lost reply blocks
+     * its caller for as long as the connection stays up. The deadlines are
+     * tracked on the client's {@link HashedWheelTimer}. No timeout by default.
+     * <p>
+     * Replies are still matched to commands in order: the late reply to a
+     * command that timed out is discarded.
+     *
+     * @param timeout time to wait for each reply, 0 to wait for as long as it
+     *                takes
+     * @param unit    unit of the timeout
+     */
+    public void setCommandTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Command timeout must not be negative: " + timeout);
+        }
+        this.commandTimeoutMillis = unit.toMillis(timeout);
+        Channel channel = this.channel;
+        if (channel != null) {
+            ((EslClientHandler) channel.getPipeline().getLast()).setCommandTimeout(timer(), commandTimeoutMillis);
+        }
+    }
+
+    /**
+     * @return the number of commands on the current connection whose reply
+     * did not arrive in time, or 0 if not connected
+     */
+    public long getCommandTimeoutCount() {
+        Channel channel = this.channel;
+        return channel == null ? 0 : ((EslClientHandler) channel.getPipeline().getLast()).getTimeoutCount();
+    }
+
+    /**
+     * Statistics of the writes to the server socket. Commands sent close
+     * together are coalesced into one socket write, so the ratio of bytes to
+     * writes shows how effective the batching is.
+     *
+     * @return the write coalescer of the current connection, or null if not
+     * connected
+     */
+    public EslWriteCoalescer getWriteStatistics() {
+        Channel channel = this.channel;
+        return channel == null ? null : channel.getPipeline().get(EslWriteCoalescer.class);
+    }
+
+    /**
+     * @return the number of commands sent on the current connection and not
+     * yet answered, or 0 if not connected
+     */
+    public int getOutstandingCommandCount() {
+        Channel channel = this.channel;
+        return channel == null ? 0 : ((EslClientHandler) channel.getPipeline().getLast()).getOutstandingCount();
+    }
+
+    /**
+     * Reconnect automatically when the connection to the server is lost.
+     * <p>
+     * The commands awaiting a reply when the connection is lost always fail.
+     * In this mode the client then reconnects with an exponential backoff,
+     * each delay picked at random in its upper half so that many clients do
+     * not reconnect in step, and restores the event subscription, the event
+     * filters and the logging level of the lost connection. A connection
+     * closed with {@link #close()} or {@link #stop()} is not reconnected.
+     *
+     * @param autoReconnect true to reconnect automatically
+     */
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
+
+    /**
+     * @param initialDelay delay before the first reconnect attempt, doubled for
+     *                     each failed attempt
+     * @param maxDelay     longest delay between reconnect attempts
+     * @param unit         unit of both delays
+     */
+    public void setReconnectDelay(long initialDelay, long maxDelay, TimeUnit unit) {
+        if (initialDelay < 1 || maxDelay < initialDelay) {
+            throw new IllegalArgumentException("Invalid reconnect delays: " + initialDelay + ", " + maxDelay);
+        }
+        this.reconnectInitialDelayMillis = unit.toMillis(initialDelay);
+        this.reconnectMaxDelayMillis = unit.toMillis(maxDelay);
+    }
+
+    /**
+     * @return the number of times the connection was restored automatically
+     */
+    public int getReconnectCount() {
+        return reconnectCount.get();
+    }
+
+    /**
+     * @return milliseconds from the loss of the connection to its automatic
+     * restore, for the last reconnect
+     */
+    public long getLastOutageMillis() {
+        return lastOutageMillis;
+    }
+
+    /**
+     * @return milliseconds since the last event was received, or since the
+     * connection was made if none has been
+     */
+    public long getMillisSinceLastEvent() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastEventNanos);
+    }
+
+    /**
+     * Notify the listeners through a dispatcher that keeps the events of each
+     * call in order but notifies different calls in parallel, instead of the
+     * default of one thread for all events and one for all job results. All
+     * listeners are notified of an event in turn, on the same thread.
+     *
+     * @param eventDispatcher the dispatcher, which may be shared with other
+     *                        clients, or null for the default
+     */
+    public void setEventDispatcher(EslEventDispatcher eventDispatcher) {
+        this.eventDispatcher = eventDispatcher;
+    }
+
+    /**
+     * Hand the events to the listeners of a ring buffer, without any
+     * allocation or queueing per event, instead of notifying the listeners
+     * added to this client. Takes precedence over an event dispatcher.
+     *
+     * @param eventRingBuffer a ring used by this client only, or null to
+     *                        notify the listeners of this client
+     */
+    public void setEventRingBuffer(EslEventRingBuffer eventRingBuffer) {
+        this.eventRingBuffer = eventRingBuffer;
+    }
+
+    /**
+     * Queue the events for the listeners in a bounded queue, instead of the
+     * unbounded queues of the notifier threads. When the listeners fall
+     * behind, the overflow policies of the queue decide between holding back
+     * the server and dropping events. Takes precedence over an event
+     * dispatcher.
+     *
+     * @param eventQueue a queue used by this client only, or null for
+     *                   unbounded queues
+     */
+    public void setEventQueue(EslEventQueue eventQueue) {
+        if (eventQueue != null) {
+            eventQueue.bind(eventListenerExecutor, new Consumer<EslEvent>() {
+                public void accept(EslEvent event) {
+                    notifyListeners(event);
+                }
+            });
+        }
+        this.eventQueue = eventQueue;
+    }
+
+    private void notifyListeners(EslEvent event) {
+        boolean jobResult = event.getEventName().equals("BACKGROUND_JOB");
+        for (IEslEventListener listener : listenersOf(event)) {
+            try {
+                if (jobResult) {
+                    listener.backgroundJobResultReceived(event);
+                } else {
+                    listener.eventReceived(event);
+                }
+            } catch (Throwable t) {
+                log.error("Error caught notifying listener of event [" + event + ']', t);
+            }
+        }
+    }
+
+    /*
+     * The listeners of every event, then those that selected this one.
+     */
+    private List<IEslEventListener> listenersOf(EslEvent event) {
+        if (eventRouter.isEmpty()) {
+            return eventListeners;
+        }
+        List<IEslEventListener> routed = eventRouter.route(event);
+        if (eventListeners.isEmpty()) {
+            return routed;
+        }
+        List<IEslEventListener> listeners = new ArrayList<IEslEventListener>(eventListeners);
+        listeners.addAll(routed);
+        return listeners;
+    }
+
     public void addEventListener(IEslEventListener listener) {
         if (listener != null) {
             eventListeners.add(listener);
         }
     }
 
+    /**
+     * Add a listener that is only notified of the events it selects, for
+     * example
+     * <p>
+     * <pre>
+     *   client.addEventListener(listener,
+     *           new EslEventSelector("CHANNEL_ANSWER"),
+     *           new EslEventSelector("CUSTOM", "sofia::register").withHeader("Caller-Context", "default"));
+     * </pre>
+     * The events are matched against an index of all the selectors, so the
+     * listeners that did not select an event cost nothing when it arrives.
+     * An event selected more than one way is notified once. This does not
+     * change the event subscription of the connection, which must include
+     * the selected events.
+     *
+     * @param listener  to notify
+     * @param selectors of the events to notify it of
+     */
+    public void addEventListener(IEslEventListener listener, EslEventSelector... selectors) {
+        if (listener != null && selectors.length > 0) {
+            eventRouter.addListener(listener, selectors);
+        }
+    }
+
+    /**
+     * Stop notifying a listener, whether it was added for all events or for
+     * selected ones.
+     *
+     * @param listener to remove
+     */
+    public void removeEventListener(IEslEventListener listener) {
+        eventListeners.remove(listener);
+        eventRouter.removeListener(listener);
+    }
+
     /**
      * Attempt to establish an authenticated connection to the nominated
      * FreeSWITCH ESL server socket. This call will block, waiting for an
@@ -154,50 +517,186 @@ public class EslClient {
      *                       aborting
      */
     public void connect(String host, int port, String password, int timeoutSeconds) throws EslConnectionFailure {
+        try {
+            connectAsync(host, port, password, timeoutSeconds).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EslConnectionFailure("Interrupted connecting to " + host + ":" + port, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof EslConnectionFailure) {
+                throw (EslConnectionFailure) e.getCause();
+            }
+            throw new EslConnectionFailure("Could not connect to " + host + ":" + port, e.getCause());
+        }
+    }
+
+    /**
+     * Attempt to establish an authenticated connection to the nominated
+     * FreeSWITCH ESL server socket, without blocking. The returned future
+     * completes as soon as the server accepts the authentication, or fails
+     * with an {@link EslConnectionFailure} if the connection cannot be made,
+     * authentication is refused, or the handshake has not completed after the
+     * supplied number of seconds.
+     *
+     * @param host           can be either ip address or hostname
+     * @param port           tcp port that server socket is listening on (set in
+     *                       event_socket_conf.xml)
+     * @param password       server event socket is expecting (set in
+     *                       event_socket_conf.xml)
+     * @param timeoutSeconds number of seconds to wait for the connection and
+     *                       handshake before aborting
+     * @return future completed when the connection is authenticated
+     */
+    public CompletableFuture<Void> connectAsync(final String host, final int port, String password, int timeoutSeconds) {
+        reconnectWanted = false;
         // If already connected, disconnect first
         if (canSend()) {
-            close();
+            closeAsync();
+            channel = null;
         }
+        this.host = host;
+        this.port = port;
+        this.password = password;
+        this.timeoutSeconds = timeoutSeconds;
 
-        // Configure this client
-        bootstrap = new ClientBootstrap(
-                new NioClientSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+        return doConnect(host, port, password, timeoutSeconds);
+    }
 
-        // Add ESL handler and factory
+    private CompletableFuture<Void> doConnect(final String host, final int port, String password, int timeoutSeconds) {
+        authenticated = false;
+
+        // Configure this client
+        final ClientBootstrap bootstrap;
         EslClientHandler handler = new EslClientHandler(password, protocolListener);
-        bootstrap.setPipelineFactory(new EslPipelineFactory(handler));
+        handler.setMaxInFlight(maxCommandsInFlight);
+        handler.setCommandTimeout(timer(), commandTimeoutMillis);
+        if (runtime != null) {
+            handler.setReplyExecutor(runtime.getReplyExecutor());
+            bootstrap = new ClientBootstrap(runtime.getChannelFactory());
+            bootstrap.setPipelineFactory(new EslPipelineFactory(handler, runtime.getHandlerExecutor()));
+        } else {
+            bootstrap = new StandaloneBootstrap(handler);
+        }
+        this.bootstrap = bootstrap;
+        bootstrap.setOption("connectTimeoutMillis", TimeUnit.SECONDS.toMillis(timeoutSeconds));
 
-        // Attempt connection
-        ChannelFuture future = bootstrap.connect(new InetSocketAddress(host, port));
+        final CompletableFuture<Void> authentication = new CompletableFuture<Void>();
+        this.authentication = authentication;
 
-        // Wait till attempt succeeds, fails or timeouts
-        if (!future.awaitUninterruptibly(timeoutSeconds, TimeUnit.SECONDS)) {
-            throw new EslConnectionFailure("Timeout connecting to " + host + ":" + port);
-        }
-        // Did not timeout
-        channel = future.getChannel();
-        // But may have failed anyway
-        if (!future.isSuccess()) {
-            log.warn("Failed to connect to [{}:{}]", host, port);
-            log.warn("  * reason: {}", future.getCause());
+        // Fail the handshake if it has not completed in time
+        final Timeout timeout = timer().newTimeout(new TimerTask() {
+            public void run(Timeout timeout) {
+                if (authentication.completeExceptionally(new EslConnectionFailure("Timeout connecting to " + host + ":" + port))) {
+                    log.warn("Timeout connecting to [{}:{}]", host, port);
+                }
+            }
+        }, timeoutSeconds, TimeUnit.SECONDS);
 
-            channel = null;
-            bootstrap.releaseExternalResources();
+        // Attempt connection
+        bootstrap.connect(new InetSocketAddress(host, port)).addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) {
+                if (!future.isSuccess()) {
+                    log.warn("Failed to connect to [{}:{}]", host, port);
+                    log.warn("  * reason: {}", future.getCause());
+                    authentication.completeExceptionally(
+                            new EslConnectionFailure("Could not connect to " + host + ":" + port, future.getCause()));
+                    return;
+                }
+                channel = future.getChannel();
+                channel.getCloseFuture().addListener(new ChannelFutureListener() {
+                    public void operationComplete(ChannelFuture future) {
+                        authentication.completeExceptionally(
+                                new EslConnectionFailure("Connection to " + host + ":" + port + " closed before authentication"));
+                    }
+                });
+            }
+        });
 
-            throw new EslConnectionFailure("Could not connect to " + host + ":" + port, future.getCause());
-        }
+        return authentication.whenComplete(new BiConsumer<Void, Throwable>() {
+            public void accept(Void result, Throwable cause) {
+                timeout.cancel();
+                if (cause == null) {
+                    lastEventNanos = System.nanoTime();
+                    reconnectWanted = true;
+                } else {
+                    Channel channel = EslClient.this.channel;
+                    EslClient.this.channel = null;
+                    if (channel != null) {
+                        channel.close();
+                    }
+                    if (runtime == null) {
+                        ((StandaloneBootstrap) bootstrap).releaseLater();
+                    }
+                }
+            }
+        });
+    }
 
-        // Wait for the authentication handshake to call back
-        while (!authenticatorResponded.get()) {
-            try {
-                Thread.sleep(250);
-            } catch (InterruptedException e) {
-                // ignore
+    private Timer timer() {
+        return runtime != null ? runtime.getTimer() : defaultTimer;
+    }
+
+    private void scheduleReconnect(final int attempt) {
+        long ceiling = Math.min(reconnectMaxDelayMillis, reconnectInitialDelayMillis << Math.min(attempt, 20));
+        long delay = ceiling / 2 + ThreadLocalRandom.current().nextLong(ceiling / 2 + 1);
+        log.info("Reconnecting to [{}:{}] in {}ms", host, port, delay);
+        timer().newTimeout(new TimerTask() {
+            public void run(Timeout timeout) {
+                if (!reconnectWanted || !autoReconnect) {
+                    reconnecting.set(false);
+                    return;
+                }
+                if (runtime == null) {
+                    // the threads of the lost connection, unless the failed
+                    // attempt before this one has released them already
+                    ((StandaloneBootstrap) bootstrap).releaseLater();
+                }
+                doConnect(host, port, password, timeoutSeconds).whenComplete(new BiConsumer<Void, Throwable>() {
+                    public void accept(Void result, Throwable cause) {
+                        if (cause != null) {
+                            log.warn("Reconnect attempt {} to [{}:{}] failed: {}", attempt + 1, host, port, cause.getMessage());
+                            scheduleReconnect(attempt + 1);
+                            return;
+                        }
+                        lastOutageMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - disconnectedNanos);
+                        reconnectCount.incrementAndGet();
+                        log.info("Reconnected to [{}:{}] after {}ms", host, port, lastOutageMillis);
+                        restoreState();
+                        reconnecting.set(false);
+                    }
+                });
             }
-        }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
 
-        if (!authenticated) {
-            throw new EslConnectionFailure("Authentication failed: " + authenticationResponse.getReplyText());
+    /*
+     * Replay the subscription, filters and logging level of the lost
+     * connection, pipelined ahead of any command sent after the reconnect.
+     */
+    private void restoreState() {
+        Channel channel = this.channel;
+        EslClientHandler handler = (EslClientHandler) channel.getPipeline().getLast();
+        List<EslCommand> commands = new ArrayList<EslCommand>();
+        if (eventSubscription != null) {
+            commands.add(eventSubscription);
+        }
+        commands.addAll(eventFilters);
+        if (loggingLevel != null) {
+            commands.add(loggingLevel);
+        }
+        for (final EslCommand command : commands) {
+            handler.sendCommandAsync(channel, command).whenComplete(new BiConsumer<EslMessage, Throwable>() {
+                public void accept(EslMessage message, Throwable cause) {
+                    if (cause != null) {
+                        log.warn("Could not restore [{}]: {}", command, cause.toString());
+                        return;
+                    }
+                    CommandResponse response = new CommandResponse(command, message);
+                    if (!response.isOk()) {
+                        log.warn("Could not restore [{}]: {}", command, response.getReplyText());
+                    }
+                }
+            });
         }
     }
 
@@ -213,19 +712,44 @@ public class EslClient {
      * @return an {@link EslMessage} containing command results
      */
     public EslMessage sendSyncApiCommand(String command, String arg) {
+        return AbstractEslClientHandler.await(sendApiCommandAsync(command, arg));
+    }
+
+    /**
+     * Sends a FreeSWITCH API command to the server without blocking. See
+     * {@link #sendSyncApiCommand(String, String)}.
+     *
+     * @param command API command to send
+     * @param arg     command arguments
+     * @return future of an {@link EslMessage} containing command results
+     */
+    public CompletableFuture<EslMessage> sendApiCommandAsync(String command, String arg) {
         checkConnected();
         EslClientHandler handler = (EslClientHandler) channel.getPipeline().getLast();
-        StringBuilder sb = new StringBuilder();
-        if (command != null && !command.isEmpty()) {
-            sb.append("api ");
-            sb.append(command);
-        }
-        if (arg != null && !arg.isEmpty()) {
-            sb.append(' ');
-            sb.append(arg);
-        }
+        EslCommand apiCommand = new EslCommand("api", command, arg);
 
-        return handler.sendSyncSingleLineCommand(channel, sb.toString());
+        return handler.sendCommandAsync(channel, apiCommand);
+    }
+
+    /**
+     * Sends a FreeSWITCH API command to the server without blocking, with a
+     * timeout of its own instead of the one set with
+     * {@link #setCommandTimeout(long, TimeUnit)}. Useful for a command known
+     * to be slow, such as {@code show channels} on a busy server.
+     *
+     * @param command API command to send
+     * @param arg     command arguments
+     * @param timeout time to wait for the reply, 0 to wait for as long as it
+     *                takes
+     * @param unit    unit of the timeout
+     * @return future of an {@link EslMessage} containing command results
+     */
+    public CompletableFuture<EslMessage> sendApiCommandAsync(String command, String arg, long timeout, TimeUnit unit) {
+        checkConnected();
+        EslClientHandler handler = (EslClientHandler) channel.getPipeline().getLast();
+        EslCommand apiCommand = new EslCommand("api", command, arg);
+
+        return handler.sendCommandAsync(channel, apiCommand, unit.toMillis(timeout));
     }
 
     /**
@@ -242,19 +766,74 @@ public class EslClient {
      * @return String Job-UUID that the server will tag result event with.
      */
     public String sendAsyncApiCommand(String command, String arg) {
+        return AbstractEslClientHandler.await(sendBackgroundApiCommandAsync(command, arg));
+    }
+
+    /**
+     * Submit a FreeSWITCH API command to the server to be executed in
+     * background mode, without blocking for the Job-UUID. See
+     * {@link #sendAsyncApiCommand(String, String)}.
+     *
+     * @param command API command to send
+     * @param arg     command arguments
+     * @return future of the Job-UUID that the server will tag result event with.
+     */
+    public CompletableFuture<String> sendBackgroundApiCommandAsync(String command, String arg) {
         checkConnected();
         EslClientHandler handler = (EslClientHandler) channel.getPipeline().getLast();
-        StringBuilder sb = new StringBuilder();
-        if (command != null && !command.isEmpty()) {
-            sb.append("bgapi ");
-            sb.append(command);
-        }
-        if (arg != null && !arg.isEmpty()) {
-            sb.append(' ');
-            sb.append(arg);
-        }
+        EslCommand apiCommand = new EslCommand("bgapi", command, arg);
+
+        return handler.sendBackgroundCommandAsync(channel, apiCommand);
+    }
+
+    /**
+     * Submit a FreeSWITCH API command to the server to be executed in
+     * background mode, and get its result without listening for it. The job
+     * is registered by its Job-UUID as soon as the server replies, and the
+     * returned future is completed directly by the matching BACKGROUND_JOB
+     * event; {@link IEslEventListener}s are still notified of the event too.
+     * <p>
+     * The future fails if the event has not arrived within the time set with
+     * {@link #setBackgroundJobTimeout(long, TimeUnit)}, or the connection is
+     * lost first. Its dependent stages run on the thread handling the events
+     * of the connection, so lengthy work should be done in async stages.
+     * <p>
+     * Note that this Client must be subscribed to BACKGROUND_JOB Events.
+     *
+     * @param command API command to send
+     * @param arg     command arguments
+     * @return future of the BACKGROUND_JOB event with the result of the job
+     */
+    public CompletableFuture<EslEvent> sendBackgroundJobAsync(String command, String arg) {
+        checkConnected();
+        EslClientHandler handler = (EslClientHandler) channel.getPipeline().getLast();
+        EslCommand apiCommand = new EslCommand("bgapi", command, arg);
+
+        return handler.sendBackgroundJobAsync(channel, apiCommand, backgroundJobs);
+    }
+
+    /**
+     * @param timeout time to wait for the result of a job sent with
+     *                {@link #sendBackgroundJobAsync(String, String)}, 10
+     *                minutes by default
+     * @param unit    unit of the timeout
+     */
+    public void setBackgroundJobTimeout(long timeout, TimeUnit unit) {
+        backgroundJobs.setTimeToLive(timeout, unit);
+    }
 
-        return handler.sendAsyncCommand(channel, sb.toString());
+    /**
+     * @return the number of jobs awaiting their result
+     */
+    public int getPendingBackgroundJobCount() {
+        return backgroundJobs.getPendingCount();
+    }
+
+    /**
+     * @return the number of jobs given up on without a result
+     */
+    public long getBackgroundJobTimeoutCount() {
+        return backgroundJobs.getEvictionCount();
     }
 
     /**
@@ -271,32 +850,33 @@ public class EslClient {
      * Subsequent calls to this method replaces any previous subscriptions that
      * were set.
      * </p>
-     * Note: current implementation can only process 'plain' events.
-     *
-     * @param format can be { plain | xml }
+     * @param format can be { plain | json | xml }
      * @param events { all | space separated list of events }
      * @return a {@link CommandResponse} with the server's response.
      */
     public CommandResponse setEventSubscriptions(String format, String events) {
-        // temporary hack
-        if (!format.equals("plain")) {
-            throw new IllegalStateException("Only 'plain' event format is supported at present");
+        return AbstractEslClientHandler.await(setEventSubscriptionsAsync(format, events));
+    }
+
+    /**
+     * Set the current event subscription without blocking. See
+     * {@link #setEventSubscriptions(String, String)}.
+     *
+     * @param format can be { plain | json | xml }
+     * @param events { all | space separated list of events }
+     * @return future of a {@link CommandResponse} with the server's response.
+     */
+    public CompletableFuture<CommandResponse> setEventSubscriptionsAsync(String format, String events) {
+        if (!format.equals("plain") && !format.equals("json") && !format.equals("xml")) {
+            throw new IllegalStateException("Event format must be one of 'plain', 'json' or 'xml'");
         }
 
         checkConnected();
         EslClientHandler handler = (EslClientHandler) channel.getPipeline().getLast();
-        StringBuilder sb = new StringBuilder();
-        if (format != null && !format.isEmpty()) {
-            sb.append("event ");
-            sb.append(format);
-        }
-        if (events != null && !events.isEmpty()) {
-            sb.append(' ');
-            sb.append(events);
-        }
-        EslMessage response = handler.sendSyncSingleLineCommand(channel, sb.toString());
+        EslCommand command = new EslCommand("event", format, events);
+        eventSubscription = command;
 
-        return new CommandResponse(sb.toString(), response);
+        return toCommandResponse(command, handler.sendCommandAsync(channel, command));
     }
 
     /**
@@ -305,11 +885,21 @@ public class EslClient {
      * @return a {@link CommandResponse} with the server's response.
      */
     public CommandResponse cancelEventSubscriptions() {
+        return AbstractEslClientHandler.await(cancelEventSubscriptionsAsync());
+    }
+
+    /**
+     * Cancel any existing event subscription without blocking.
+     *
+     * @return future of a {@link CommandResponse} with the server's response.
+     */
+    public CompletableFuture<CommandResponse> cancelEventSubscriptionsAsync() {
         checkConnected();
         EslClientHandler handler = (EslClientHandler) channel.getPipeline().getLast();
-        EslMessage response = handler.sendSyncSingleLineCommand(channel, "noevents");
+        EslCommand command = new EslCommand("noevents");
+        eventSubscription = null;
 
-        return new CommandResponse("noevents", response);
+        return toCommandResponse(command, handler.sendCommandAsync(channel, command));
     }
 
     /**
@@ -334,20 +924,49 @@ public class EslClient {
      * @return a {@link CommandResponse} with the server's response.
      */
     public CommandResponse addEventFilter(String eventHeader, String valueToFilter) {
+        return AbstractEslClientHandler.await(addEventFilterAsync(eventHeader, valueToFilter));
+    }
+
+    /**
+     * Add an event filter without blocking. See
+     * {@link #addEventFilter(String, String)}.
+     *
+     * @param eventHeader   to filter on
+     * @param valueToFilter the value to match
+     * @return future of a {@link CommandResponse} with the server's response.
+     */
+    public CompletableFuture<CommandResponse> addEventFilterAsync(String eventHeader, String valueToFilter) {
         checkConnected();
         EslClientHandler handler = (EslClientHandler) channel.getPipeline().getLast();
-        StringBuilder sb = new StringBuilder();
-        if (eventHeader != null && !eventHeader.isEmpty()) {
-            sb.append("filter ");
-            sb.append(eventHeader);
-        }
-        if (valueToFilter != null && !valueToFilter.isEmpty()) {
-            sb.append(' ');
-            sb.append(valueToFilter);
+        EslCommand command = new EslCommand("filter", eventHeader, valueToFilter);
+        /*
+         * Recorded for replay on reconnect as it is sent, so that it keeps its
+         * order with the deletes, unless already recorded, and dropped again
+         * if the server rejects it.
+         */
+        final EslCommand recorded = isFilterRecorded(command) ? null : command;
+        if (recorded != null) {
+            eventFilters.add(recorded);
         }
-        EslMessage response = handler.sendSyncSingleLineCommand(channel, sb.toString());
 
-        return new CommandResponse(sb.toString(), response);
+        return toCommandResponse(command, handler.sendCommandAsync(channel, command))
+                .whenComplete(new BiConsumer<CommandResponse, Throwable>() {
+                    public void accept(CommandResponse response, Throwable cause) {
+                        if (recorded != null && response != null && !response.isOk()) {
+                            eventFilters.remove(recorded);
+                        }
+                    }
+                });
+    }
+
+    private boolean isFilterRecorded(EslCommand command) {
+        String line = command.toString();
+        for (EslCommand filter : eventFilters) {
+            if (filter.toString().equals(line)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -359,20 +978,30 @@ public class EslClient {
      * @return a {@link CommandResponse} with the server's response.
      */
     public CommandResponse deleteEventFilter(String eventHeader, String valueToFilter) {
+        return AbstractEslClientHandler.await(deleteEventFilterAsync(eventHeader, valueToFilter));
+    }
+
+    /**
+     * Delete an event filter without blocking. See
+     * {@link #deleteEventFilter(String, String)}.
+     *
+     * @param eventHeader   to remove
+     * @param valueToFilter to remove
+     * @return future of a {@link CommandResponse} with the server's response.
+     */
+    public CompletableFuture<CommandResponse> deleteEventFilterAsync(String eventHeader, String valueToFilter) {
         checkConnected();
         EslClientHandler handler = (EslClientHandler) channel.getPipeline().getLast();
-        StringBuilder sb = new StringBuilder();
-        if (eventHeader != null && !eventHeader.isEmpty()) {
-            sb.append("filter delete ");
-            sb.append(eventHeader);
-        }
-        if (valueToFilter != null && !valueToFilter.isEmpty()) {
-            sb.append(' ');
-            sb.append(valueToFilter);
+        EslCommand command = new EslCommand("filter", "delete", eventHeader, valueToFilter);
+        for (EslCommand filter : eventFilters) {
+            // without a value every filter on the header is deleted
+            if ("all".equals(eventHeader) || (eventHeader != null && eventHeader.equals(filter.getWord(1))
+                    && (valueToFilter == null || valueToFilter.equals(filter.getWord(2))))) {
+                eventFilters.remove(filter);
+            }
         }
-        EslMessage response = handler.sendSyncSingleLineCommand(channel, sb.toString());
 
-        return new CommandResponse(sb.toString(), response);
+        return toCommandResponse(command, handler.sendCommandAsync(channel, command));
     }
 
     /**
@@ -383,11 +1012,21 @@ public class EslClient {
      * @return a {@link CommandResponse} with the server's response.
      */
     public CommandResponse sendMessage(SendMsg sendMsg) {
+        return AbstractEslClientHandler.await(sendMessageAsync(sendMsg));
+    }
+
+    /**
+     * Send a {@link SendMsg} command to FreeSWITCH without blocking. See
+     * {@link #sendMessage(SendMsg)}.
+     *
+     * @param sendMsg a {@link SendMsg} with call UUID
+     * @return future of a {@link CommandResponse} with the server's response.
+     */
+    public CompletableFuture<CommandResponse> sendMessageAsync(SendMsg sendMsg) {
         checkConnected();
         EslClientHandler handler = (EslClientHandler) channel.getPipeline().getLast();
-        EslMessage response = handler.sendSyncMultiLineCommand(channel, sendMsg.getMsgLines());
 
-        return new CommandResponse(sendMsg.toString(), response);
+        return toCommandResponse(sendMsg.toString(), handler.sendCommandAsync(channel, sendMsg));
     }
 
     /**
@@ -397,16 +1036,22 @@ public class EslClient {
      * @return a {@link CommandResponse} with the server's response.
      */
     public CommandResponse setLoggingLevel(String level) {
+        return AbstractEslClientHandler.await(setLoggingLevelAsync(level));
+    }
+
+    /**
+     * Enable log output without blocking.
+     *
+     * @param level using the same values as in console.conf
+     * @return future of a {@link CommandResponse} with the server's response.
+     */
+    public CompletableFuture<CommandResponse> setLoggingLevelAsync(String level) {
         checkConnected();
         EslClientHandler handler = (EslClientHandler) channel.getPipeline().getLast();
-        StringBuilder sb = new StringBuilder();
-        if (level != null && !level.isEmpty()) {
-            sb.append("log ");
-            sb.append(level);
-        }
-        EslMessage response = handler.sendSyncSingleLineCommand(channel, sb.toString());
+        EslCommand command = new EslCommand("log", level);
+        loggingLevel = command;
 
-        return new CommandResponse(sb.toString(), response);
+        return toCommandResponse(command, handler.sendCommandAsync(channel, command));
     }
 
     /**
@@ -415,11 +1060,22 @@ public class EslClient {
      * @return a {@link CommandResponse} with the server's response.
      */
     public CommandResponse cancelLogging() {
+        return AbstractEslClientHandler.await(cancelLoggingAsync());
+    }
+
+    /**
+     * Disable any logging previously enabled with setLogLevel(), without
+     * blocking.
+     *
+     * @return future of a {@link CommandResponse} with the server's response.
+     */
+    public CompletableFuture<CommandResponse> cancelLoggingAsync() {
         checkConnected();
         EslClientHandler handler = (EslClientHandler) channel.getPipeline().getLast();
-        EslMessage response = handler.sendSyncSingleLineCommand(channel, "nolog");
+        EslCommand command = new EslCommand("nolog");
+        loggingLevel = null;
 
-        return new CommandResponse("nolog", response);
+        return toCommandResponse(command, handler.sendCommandAsync(channel, command));
     }
 
     /**
@@ -428,11 +1084,37 @@ public class EslClient {
      * @return a {@link CommandResponse} with the server's response.
      */
     public CommandResponse close() {
+        return AbstractEslClientHandler.await(closeAsync());
+    }
+
+    /**
+     * Close the socket connection without blocking.
+     *
+     * @return future of a {@link CommandResponse} with the server's response.
+     */
+    public CompletableFuture<CommandResponse> closeAsync() {
         checkConnected();
+        reconnectWanted = false;
         EslClientHandler handler = (EslClientHandler) channel.getPipeline().getLast();
-        EslMessage response = handler.sendSyncSingleLineCommand(channel, "exit");
+        EslCommand command = new EslCommand("exit");
+
+        return toCommandResponse(command, handler.sendCommandAsync(channel, command));
+    }
 
-        return new CommandResponse("exit", response);
+    private static CompletableFuture<CommandResponse> toCommandResponse(final String command, CompletableFuture<EslMessage> response) {
+        return response.thenApply(new Function<EslMessage, CommandResponse>() {
+            public CommandResponse apply(EslMessage message) {
+                return new CommandResponse(command, message);
+            }
+        });
+    }
+
+    private static CompletableFuture<CommandResponse> toCommandResponse(final EslCommand command, CompletableFuture<EslMessage> response) {
+        return response.thenApply(new Function<EslMessage, CommandResponse>() {
+            public CommandResponse apply(EslMessage message) {
+                return new CommandResponse(command, message);
+            }
+        });
     }
 
     private void checkConnected() {
@@ -453,7 +1135,57 @@ public class EslClient {
 
     public void stop() {
         //TODO:
-        bootstrap.releaseExternalResources();
+        reconnectWanted = false;
+        if (runtime == null) {
+            bootstrap.releaseExternalResources();
+        } else if (channel != null) {
+            // the threads belong to the runtime, only this connection is ours
+            channel.close();
+        }
     }
 
+    /*
+     * The bootstrap of a client without a runtime, with its own boss, worker
+     * and pipeline threads, released once by whichever of a failed connect,
+     * a reconnect or stop() gets to it first.
+     */
+    private static final class StandaloneBootstrap extends ClientBootstrap {
+        private final AtomicBoolean released = new AtomicBoolean();
+        private final OrderedMemoryAwareThreadPoolExecutor handlerExecutor =
+                new OrderedMemoryAwareThreadPoolExecutor(16, 1048576, 1048576);
+
+        StandaloneBootstrap(ChannelHandler handler) {
+            super(new NioClientSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool()));
+            setPipelineFactory(new EslPipelineFactory(handler, handlerExecutor));
+        }
+
+        @Override
+        public void releaseExternalResources() {
+            if (released.compareAndSet(false, true)) {
+                release();
+            }
+        }
+
+        /*
+         * Release on a thread of its own. Not on one of the bootstrap's
+         * threads, which cannot stop themselves, and not on the timer shared
+         * by all clients, which would stall while the threads exit.
+         */
+        void releaseLater() {
+            if (released.compareAndSet(false, true)) {
+                Thread thread = new Thread(new Runnable() {
+                    public void run() {
+                        release();
+                    }
+                }, "EslBootstrapRelease");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        private void release() {
+            super.releaseExternalResources();
+            ExecutorUtil.terminate(handlerExecutor);
+        }
+    }
 }
@@ -0,0 +1,505 @@
+/*
+ * Copyright 2010 david varnes.
+ *
+ * Licensed under the Apache License, version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.freeswitch.esl.client;
+
+import com.freeswitch.esl.client.handler.EslConnectionFailure;
+import com.freeswitch.esl.client.internal.AbstractEslClientHandler;
+import com.freeswitch.esl.transport.CommandResponse;
+import com.freeswitch.esl.transport.SendMsg;
+import com.freeswitch.esl.transport.event.EslEvent;
+import com.freeswitch.esl.transport.message.EslMessage;
+import com.freeswitch.netty.util.Timeout;
+import com.freeswitch.netty.util.TimerTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+/**
+ * Client of a farm of FreeSWITCH servers, with one inbound {@link EslClient}
+ * connection per {@link EslNode}.
+ * <p>
+ * Commands about a call are routed by its UUID on a consistent hash ring, so
+ * the same call always goes to the same node and adding or losing a node only
+ * moves the calls of that node. Commands without a UUID go to the healthy node
+ * with the fewest outstanding commands.
+ * <p>
+ * Every node is checked with {@code api status} at a fixed interval. A node
+ * that fails the check, or has not answered the previous one by the next, is
+ * taken out of the routing until it answers again, and a node that lost its
+ * connection is reconnected.
+ * <p>
+ * The events of all nodes are merged into one stream for the
+ * {@link IEslClusterEventListener}s, tagged with the node they came from.
+ * All connections share the threads and timer of one {@link EslRuntime}.
+ */
+public class EslClusterClient {
+    // points per node on the hash ring, enough to spread the calls evenly
+    private static final int VIRTUAL_NODES = 160;
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final EslRuntime runtime;
+    private final boolean ownRuntime;
+    private final List<EslNode> nodes = new CopyOnWriteArrayList<EslNode>();
+    private final List<IEslClusterEventListener> eventListeners = new CopyOnWriteArrayList<IEslClusterEventListener>();
+    private final AtomicInteger nextNode = new AtomicInteger();
+    // replaced, never modified, when a node is added
+    private volatile NavigableMap<Integer, EslNode> ring = new TreeMap<Integer, EslNode>();
+    private volatile long healthCheckIntervalMillis = TimeUnit.SECONDS.toMillis(5);
+    private volatile int timeoutSeconds = 5;
+    private volatile String eventFormat;
+    private volatile String events;
+    private volatile boolean started;
+    private volatile boolean closed;
+
+    /**
+     * Create a cluster client with a runtime of its own, released when the
+     * client is closed.
+     */
+    public EslClusterClient() {
+        this(new EslRuntime(), true);
+    }
+
+    /**
+     * @param runtime shared by the connections to all nodes
+     */
+    public EslClusterClient(EslRuntime runtime) {
+        this(runtime, false);
+    }
+
+    private EslClusterClient(EslRuntime runtime, boolean ownRuntime) {
+        this.runtime = runtime;
+        this.ownRuntime = ownRuntime;
+    }
+
+    /**
+     * Add a FreeSWITCH server to the cluster. A node added after
+     * {@link #connect(int)} is connected by the next health check.
+     *
+     * @param name     unique name of the node, which places it on the hash ring
+     * @param host     can be either ip address or hostname
+     * @param port     tcp port that server socket is listening on
+     * @param password server event socket is expecting
+     * @return the new node
+     */
+    public synchronized EslNode addNode(String name, String host, int port, String password) {
+        for (EslNode node : nodes) {
+            if (node.getName().equals(name)) {
+                throw new IllegalArgumentException("Duplicate node name: " + name);
+            }
+        }
+        final EslNode node = new EslNode(name, host, port, password, new EslClient(runtime));
+        node.getClient().addEventListener(new IEslEventListener() {
+            public void eventReceived(EslEvent event) {
+                for (IEslClusterEventListener listener : eventListeners) {
+                    try {
+                        listener.eventReceived(node, event);
+                    } catch (Throwable t) {
+                        log.error("Error caught notifying listener of event [" + event + "] from " + node, t);
+                    }
+                }
+            }
+
+            public void backgroundJobResultReceived(EslEvent event) {
+                for (IEslClusterEventListener listener : eventListeners) {
+                    try {
+                        listener.backgroundJobResultReceived(node, event);
+                    } catch (Throwable t) {
+                        log.error("Error caught notifying listener of job result [" + event + "] from " + node, t);
+                    }
+                }
+            }
+        });
+        nodes.add(node);
+
+        NavigableMap<Integer, EslNode> ring = new TreeMap<Integer, EslNode>(this.ring);
+        for (int i = 0; i < VIRTUAL_NODES; i++) {
+            ring.put(hash(name + '#' + i), node);
+        }
+        this.ring = ring;
+        return node;
+    }
+
+    /**
+     * @return the nodes of this cluster
+     */
+    public List<EslNode> getNodes() {
+        return Collections.unmodifiableList(nodes);
+    }
+
+    public void addEventListener(IEslClusterEventListener listener) {
+        if (listener != null) {
+            eventListeners.add(listener);
+        }
+    }
+
+    /**
+     * A node that does not answer its check within the interval is marked
+     * unhealthy, and its connection closed and made again.
+     *
+     * @param interval time between health checks of each node
+     * @param unit     unit of the interval
+     */
+    public void setHealthCheckInterval(long interval, TimeUnit unit) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Health check interval must be positive: " + interval);
+        }
+        this.healthCheckIntervalMillis = unit.toMillis(interval);
+    }
+
+    /**
+     * Connect to every node and start the health checks. This call will block
+     * until each node is connected or has failed to connect.
+     *
+     * @param timeoutSeconds number of seconds to wait for each node
+     * @throws EslConnectionFailure if no node could be connected to
+     */
+    public void connect(int timeoutSeconds) throws EslConnectionFailure {
+        try {
+            connectAsync(timeoutSeconds).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EslConnectionFailure("Interrupted while connecting to the cluster");
+        } catch (ExecutionException e) {
+            throw (EslConnectionFailure) e.getCause();
+        }
+    }
+
+    /**
+     * Connect to every node and start the health checks, without blocking.
+     * The nodes that fail to connect are retried by the health checks.
+     *
+     * @param timeoutSeconds number of seconds to wait for each node
+     * @return future completed when every node is connected or has failed to
+     * connect, failed with an {@link EslConnectionFailure} if none connected
+     */
+    public CompletableFuture<Void> connectAsync(int timeoutSeconds) {
+        this.timeoutSeconds = timeoutSeconds;
+        List<EslNode> nodes = new ArrayList<EslNode>(this.nodes);
+        CompletableFuture<?>[] connects = new CompletableFuture<?>[nodes.size()];
+        for (int i = 0; i < connects.length; i++) {
+            connects[i] = connect(nodes.get(i));
+        }
+        synchronized (this) {
+            if (!started) {
+                started = true;
+                scheduleHealthCheck();
+            }
+        }
+
+        final CompletableFuture<Void> connected = new CompletableFuture<Void>();
+        CompletableFuture.allOf(connects).whenComplete(new BiConsumer<Void, Throwable>() {
+            public void accept(Void result, Throwable cause) {
+                for (EslNode node : getNodes()) {
+                    if (node.isHealthy()) {
+                        connected.complete(null);
+                        return;
+                    }
+                }
+                connected.completeExceptionally(new EslConnectionFailure("Could not connect to any node of the cluster"));
+            }
+        });
+        return connected;
+    }
+
+    /*
+     * Never fails, the failure is logged and the node left unhealthy.
+     */
+    private CompletableFuture<Void> connect(final EslNode node) {
+        CompletableFuture<Void> connect = node.getClient()
+                .connectAsync(node.getHost(), node.getPort(), node.getPassword(), timeoutSeconds)
+                .handle(new BiFunction<Void, Throwable, Void>() {
+                    public Void apply(Void result, Throwable cause) {
+                        if (cause != null) {
+                            log.warn("Could not connect to {}: {}", node, cause.getMessage());
+                            node.setHealthy(false);
+                            return null;
+                        }
+                        log.info("Connected to {}", node);
+                        String format = eventFormat;
+                        if (format != null) {
+                            node.getClient().setEventSubscriptionsAsync(format, events);
+                        }
+                        node.setHealthy(true);
+                        return null;
+                    }
+                });
+        node.check = connect;
+        return connect;
+    }
+
+    private void scheduleHealthCheck() {
+        runtime.getTimer().newTimeout(new TimerTask() {
+            public void run(Timeout timeout) {
+                if (closed) {
+                    return;
+                }
+                for (EslNode node : nodes) {
+                    checkHealth(node);
+                }
+                scheduleHealthCheck();
+            }
+        }, healthCheckIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void checkHealth(final EslNode node) {
+        CompletableFuture<?> previous = node.check;
+        if (previous != null && !previous.isDone()) {
+            // not answered within a whole interval
+            if (node.isHealthy()) {
+                log.warn("Health check of {} timed out", node);
+            }
+            node.setHealthy(false);
+            return;
+        }
+        final EslClient client = node.getClient();
+        if (!client.canSend()) {
+            node.setHealthy(false);
+            connect(node);
+            return;
+        }
+        CompletableFuture<EslMessage> status;
+        try {
+            // answered within the interval, or the next check would find it pending
+            status = client.sendApiCommandAsync("status", null, healthCheckIntervalMillis, TimeUnit.MILLISECONDS);
+        } catch (IllegalStateException e) {
+            // disconnected since canSend, reconnected by the next check
+            node.setHealthy(false);
+            return;
+        }
+        node.check = status.whenComplete(new BiConsumer<EslMessage, Throwable>() {
+            public void accept(EslMessage message, Throwable cause) {
+                if (cause instanceof TimeoutException) {
+                    // likely half open, close it to fail its commands and
+                    // reconnect on the next check
+                    log.warn("Health check of {} timed out, closing the connection", node);
+                    client.stop();
+                } else if (cause != null) {
+                    log.warn("Health check of {} failed: {}", node, cause.toString());
+                } else if (!node.isHealthy()) {
+                    log.info("{} is healthy again", node);
+                }
+                node.setHealthy(cause == null);
+            }
+        });
+    }
+
+    /**
+     * Choose the node for a command.
+     *
+     * @param uuid the call UUID the command is about, or null
+     * @return the healthy node owning the UUID on the hash ring, or with the
+     * fewest outstanding commands if the UUID is null
+     * @throws IllegalStateException if no node is healthy
+     */
+    public EslNode selectNode(String uuid) {
+        EslNode node = uuid == null ? leastOutstanding() : owner(uuid);
+        if (node == null) {
+            throw new IllegalStateException("No healthy FreeSWITCH node in the cluster");
+        }
+        return node;
+    }
+
+    private EslNode owner(String uuid) {
+        NavigableMap<Integer, EslNode> ring = this.ring;
+        int hash = hash(uuid);
+        // walk clockwise past the nodes that are down
+        for (EslNode node : ring.tailMap(hash, true).values()) {
+            if (node.isHealthy()) {
+                return node;
+            }
+        }
+        for (EslNode node : ring.headMap(hash, false).values()) {
+            if (node.isHealthy()) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private EslNode leastOutstanding() {
+        List<EslNode> nodes = this.nodes;
+        int size = nodes.size();
+        if (size == 0) {
+            return null;
+        }
+        // start at a different node each time so that ties are spread
+        int start = (nextNode.getAndIncrement() & Integer.MAX_VALUE) % size;
+        EslNode best = null;
+        int bestCount = Integer.MAX_VALUE;
+        for (int i = 0; i < size; i++) {
+            EslNode node = nodes.get((start + i) % size);
+            if (node.isHealthy()) {
+                int count = node.getOutstandingCommandCount();
+                if (count < bestCount) {
+                    best = node;
+                    bestCount = count;
+                }
+            }
+        }
+        return best;
+    }
+
+    /*
+     * FNV-1a, then the murmur3 finaliser to spread similar keys over the ring.
+     */
+    private static int hash(String key) {
+        int h = 0x811c9dc5;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * Sends a FreeSWITCH API command to the node of a call, blocking until
+     * the response is received. See
+     * {@link EslClient#sendSyncApiCommand(String, String)}.
+     *
+     * @param uuid    call UUID to route by, or null for the least loaded node
+     * @param command API command to send
+     * @param arg     command arguments
+     * @return an {@link EslMessage} containing command results
+     */
+    public EslMessage sendSyncApiCommand(String uuid, String command, String arg) {
+        return AbstractEslClientHandler.await(sendApiCommandAsync(uuid, command, arg));
+    }
+
+    /**
+     * Sends a FreeSWITCH API command to the node of a call without blocking.
+     *
+     * @param uuid    call UUID to route by, or null for the least loaded node
+     * @param command API command to send
+     * @param arg     command arguments
+     * @return future of an {@link EslMessage} containing command results
+     */
+    public CompletableFuture<EslMessage> sendApiCommandAsync(String uuid, String command, String arg) {
+        return selectNode(uuid).getClient().sendApiCommandAsync(command, arg);
+    }
+
+    /**
+     * Submit a FreeSWITCH API command to the node of a call to be executed in
+     * background mode. See {@link EslClient#sendAsyncApiCommand(String, String)};
+     * the BACKGROUND_JOB event is notified with the node it came from.
+     *
+     * @param uuid    call UUID to route by, or null for the least loaded node
+     * @param command API command to send
+     * @param arg     command arguments
+     * @return String Job-UUID that the server will tag result event with.
+     */
+    public String sendAsyncApiCommand(String uuid, String command, String arg) {
+        return AbstractEslClientHandler.await(sendBackgroundApiCommandAsync(uuid, command, arg));
+    }
+
+    /**
+     * Submit a FreeSWITCH API command to the node of a call to be executed in
+     * background mode, without blocking for the Job-UUID.
+     *
+     * @param uuid    call UUID to route by, or null for the least loaded node
+     * @param command API command to send
+     * @param arg     command arguments
+     * @return future of the Job-UUID that the server will tag result event with.
+     */
+    public CompletableFuture<String> sendBackgroundApiCommandAsync(String uuid, String command, String arg) {
+        return selectNode(uuid).getClient().sendBackgroundApiCommandAsync(command, arg);
+    }
+
+    /**
+     * Submit a FreeSWITCH API command to the node of a call to be executed in
+     * background mode, and get its result. See
+     * {@link EslClient#sendBackgroundJobAsync(String, String)}.
+     *
+     * @param uuid    call UUID to route by, or null for the least loaded node
+     * @param command API command to send
+     * @param arg     command arguments
+     * @return future of the BACKGROUND_JOB event with the result of the job
+     */
+    public CompletableFuture<EslEvent> sendBackgroundJobAsync(String uuid, String command, String arg) {
+        return selectNode(uuid).getClient().sendBackgroundJobAsync(command, arg);
+    }
+
+    /**
+     * Send a {@link SendMsg} command to the node owning its call UUID.
+     *
+     * @param sendMsg a {@link SendMsg} with call UUID
+     * @return a {@link CommandResponse} with the server's response.
+     */
+    public CommandResponse sendMessage(SendMsg sendMsg) {
+        return AbstractEslClientHandler.await(sendMessageAsync(sendMsg));
+    }
+
+    /**
+     * Send a {@link SendMsg} command to the node owning its call UUID without
+     * blocking.
+     *
+     * @param sendMsg a {@link SendMsg} with call UUID
+     * @return future of a {@link CommandResponse} with the server's response.
+     */
+    public CompletableFuture<CommandResponse> sendMessageAsync(SendMsg sendMsg) {
+        return selectNode(sendMsg.getUuid()).getClient().sendMessageAsync(sendMsg);
+    }
+
+    /**
+     * Set the event subscription of every node, now and whenever a node is
+     * reconnected. See {@link EslClient#setEventSubscriptions(String, String)}.
+     *
+     * @param format can be { plain | json | xml }
+     * @param events { all | space separated list of events }
+     */
+    public void setEventSubscriptions(String format, String events) {
+        this.events = events;
+        this.eventFormat = format;
+        for (EslNode node : nodes) {
+            if (node.getClient().canSend()) {
+                node.getClient().setEventSubscriptionsAsync(format, events);
+            }
+        }
+    }
+
+    /**
+     * Stop the health checks and close the connection to every node.
+     */
+    public void close() {
+        closed = true;
+        for (EslNode node : nodes) {
+            node.setHealthy(false);
+            node.getClient().stop();
+        }
+        if (ownRuntime) {
+            runtime.releaseExternalResources();
+        }
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010 david varnes.
+ *
+ * Licensed under the Apache License, version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.freeswitch.esl.client;
+
+import com.freeswitch.esl.client.internal.SerialExecutor;
+import com.freeswitch.esl.transport.event.EslEvent;
+import com.freeswitch.esl.transport.event.EslEventHeaderNames;
+import com.freeswitch.netty.util.ExternalResourceReleasable;
+import com.freeswitch.netty.util.internal.ExecutorUtil;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Notifies {@link IEslEventListener}s of events in parallel, while keeping
+ * the events of each call in order.
+ * <p>
+ * Events are spread over a number of lanes by their Unique-ID, or Job-UUID
+ * for background job results, so that all the events of one call go down the
+ * same lane. Each lane runs its events one at a time and in the order
+ * received, as the ordered executor of a connection does for its channel
+ * events, and different lanes run at the same time on a shared pool. A slow
+ * listener then only holds up the calls of its own lane. Events not about a
+ * call, such as HEARTBEAT or most CUSTOM events, have a lane of their own.
+ * <p>
+ * One dispatcher can be shared by many {@link EslClient}s, see
+ * {@link EslClient#setEventDispatcher(EslEventDispatcher)}.
+ */
+public class EslEventDispatcher implements ExternalResourceReleasable {
+    private final SerialExecutor[] callLanes;
+    private final SerialExecutor otherLane;
+    private final ExecutorService ownExecutor;
+
+    /**
+     * Create a dispatcher with a pool of its own and one lane per thread. The
+     * threads are daemons, so a dispatcher never released does not keep the
+     * JVM alive.
+     *
+     * @param threadCount number of threads notifying listeners
+     */
+    public EslEventDispatcher(int threadCount) {
+        this(newExecutor(threadCount), threadCount, true);
+    }
+
+    /**
+     * Create a dispatcher running its lanes on a shared executor, such as
+     * {@link EslRuntime#getEventExecutor()}.
+     *
+     * @param executor  to run the lanes on
+     * @param laneCount number of lanes for call events, at most this many calls
+     *                  are notified at the same time
+     */
+    public EslEventDispatcher(Executor executor, int laneCount) {
+        this(executor, laneCount, false);
+    }
+
+    private EslEventDispatcher(Executor executor, int laneCount, boolean ownExecutor) {
+        if (laneCount < 1) {
+            throw new IllegalArgumentException("laneCount must be at least 1: " + laneCount);
+        }
+        callLanes = new SerialExecutor[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            callLanes[i] = new SerialExecutor(executor);
+        }
+        otherLane = new SerialExecutor(executor);
+        this.ownExecutor = ownExecutor ? (ExecutorService) executor : null;
+    }
+
+    private static ExecutorService newExecutor(int threadCount) {
+        // checked before the pool is created, as nothing would release it
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("threadCount must be at least 1: " + threadCount);
+        }
+        return Executors.newFixedThreadPool(threadCount + 1, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "EslEventDispatcher-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Run a task about an event in the lane of the event's call.
+     *
+     * @param event the event the task is about
+     * @param task  to run
+     */
+    public void dispatch(EslEvent event, Runnable task) {
+        laneOf(event).execute(task);
+    }
+
+    private Executor laneOf(EslEvent event) {
+        String key = event.getEventHeaders().get(EslEventHeaderNames.UNIQUE_ID);
+        if (key == null) {
+            key = event.getEventHeaders().get(EslEventHeaderNames.JOB_UUID);
+        }
+        if (key == null) {
+            return otherLane;
+        }
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return callLanes[(hash & Integer.MAX_VALUE) % callLanes.length];
+    }
+
+    /**
+     * @return the number of lanes for call events
+     */
+    public int getLaneCount() {
+        return callLanes.length;
+    }
+
+    /**
+     * Stop the threads of this dispatcher, if it has a pool of its own.
+     */
+    public void releaseExternalResources() {
+        if (ownExecutor != null) {
+            ExecutorUtil.terminate(ownExecutor);
+        }
+    }
+}
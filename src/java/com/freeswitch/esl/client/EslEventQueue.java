@@ -0,0 +1,325 @@
+/*
+ * Copyright 2010 david varnes.
+ *
+ * Licensed under the Apache License, version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.freeswitch.esl.client;
+
+import com.freeswitch.esl.transport.event.EslEvent;
+import com.freeswitch.esl.transport.event.EslEventHeaderNames;
+import com.freeswitch.netty.channel.Channel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * A bounded queue of the events of one {@link EslClient} awaiting its
+ * listeners, see {@link EslClient#setEventQueue(EslEventQueue)}.
+ * <p>
+ * What happens to an event arriving while the queue is full depends on the
+ * {@link OverflowPolicy} for its Event-Name, so that events that must not be
+ * lost hold back the server while those that may be lost are dropped:
+ * <pre>
+ *   new EslEventQueue(10000, OverflowPolicy.BLOCK)
+ *           .setPolicy("HEARTBEAT", OverflowPolicy.DROP_NEWEST)
+ *           .setPolicy("CHANNEL_CALLSTATE", OverflowPolicy.COALESCE);
+ * </pre>
+ * Events and background job results share the queue and are notified in
+ * the order they were received.
+ */
+public class EslEventQueue {
+    private static final Logger log = LoggerFactory.getLogger(EslEventQueue.class);
+
+    /**
+     * What to do with an event that arrives while the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Hold the thread handling the connection until there is room, and
+         * stop reading the socket until the queue is down to half, so that
+         * TCP holds back the server. Nothing is lost. While reading is
+         * stopped no command reply can arrive either, so a listener must not
+         * wait for a reply from this connection.
+         */
+        BLOCK,
+        /**
+         * Drop the oldest queued event to make room, unless that event is
+         * itself to be kept, then drop the new one.
+         */
+        DROP_OLDEST,
+        /**
+         * Drop the new event.
+         */
+        DROP_NEWEST,
+        /**
+         * Replace the queued event of the same name for the same call, by
+         * Unique-ID, with the new one; drop the new event if there is none.
+         */
+        COALESCE
+    }
+
+    private final int capacity;
+    private final OverflowPolicy defaultPolicy;
+    private final Map<String, OverflowPolicy> policies = new ConcurrentHashMap<String, OverflowPolicy>();
+
+    // a lock rather than a monitor, so that a virtual thread held by the
+    // BLOCK policy does not pin its carrier thread
+    private final Lock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    // guarded by lock
+    private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+    private final Map<String, Entry> coalescable = new HashMap<String, Entry>();
+    private boolean draining;
+    private Channel pausedChannel;
+
+    private final AtomicLong blockedCount = new AtomicLong();
+    private final AtomicLong droppedOldestCount = new AtomicLong();
+    private final AtomicLong droppedNewestCount = new AtomicLong();
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    private Executor executor;
+    private Consumer<EslEvent> listeners;
+    private final Runnable drain = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * @param capacity      number of events queued before the overflow
+     *                      policy applies
+     * @param defaultPolicy for the events without a policy of their own
+     */
+    public EslEventQueue(int capacity, OverflowPolicy defaultPolicy) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity must be at least 1: " + capacity);
+        }
+        this.capacity = capacity;
+        this.defaultPolicy = defaultPolicy;
+    }
+
+    /**
+     * @param eventName the Event-Name of the events
+     * @param policy    for those events
+     * @return this queue
+     */
+    public EslEventQueue setPolicy(String eventName, OverflowPolicy policy) {
+        policies.put(eventName, policy);
+        return this;
+    }
+
+    void bind(Executor executor, Consumer<EslEvent> listeners) {
+        lock.lock();
+        try {
+            if (this.executor != null) {
+                throw new IllegalStateException("Event queue already used by a client");
+            }
+            this.executor = executor;
+            this.listeners = listeners;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue an event, applying its overflow policy if the queue is full.
+     *
+     * @param event   to queue
+     * @param channel the event was read from, paused by the BLOCK policy
+     */
+    void offer(EslEvent event, Channel channel) {
+        String eventName = event.getEventName();
+        OverflowPolicy policy = policies.get(eventName);
+        if (policy == null) {
+            policy = defaultPolicy;
+        }
+        String key = null;
+        if (policy == OverflowPolicy.COALESCE) {
+            String uniqueId = event.getEventHeaders().get(EslEventHeaderNames.UNIQUE_ID);
+            if (uniqueId != null) {
+                key = uniqueId + ' ' + eventName;
+            }
+        }
+        boolean schedule = false;
+        lock.lock();
+        try {
+            if (entries.size() >= capacity) {
+                switch (policy) {
+                    case BLOCK:
+                        if (pausedChannel == null) {
+                            // under the lock, so that it cannot overtake the resume
+                            pausedChannel = channel;
+                            blockedCount.incrementAndGet();
+                            log.warn("Event queue full, pausing reads from [{}]", channel.getRemoteAddress());
+                            channel.setReadable(false);
+                        }
+                        // the events already read wait here, not in the executor
+                        while (entries.size() >= capacity && channel.isOpen()) {
+                            try {
+                                notFull.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                break;
+                            }
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        Entry oldest = entries.peekFirst();
+                        if (oldest.policy == OverflowPolicy.BLOCK) {
+                            droppedNewestCount.incrementAndGet();
+                            return;
+                        }
+                        remove(entries.pollFirst());
+                        droppedOldestCount.incrementAndGet();
+                        break;
+                    case DROP_NEWEST:
+                        droppedNewestCount.incrementAndGet();
+                        return;
+                    case COALESCE:
+                        Entry queued = key == null ? null : coalescable.get(key);
+                        if (queued == null) {
+                            droppedNewestCount.incrementAndGet();
+                        } else {
+                            queued.event = event;
+                            coalescedCount.incrementAndGet();
+                        }
+                        return;
+                }
+            }
+            Entry entry = new Entry(event, policy, key);
+            entries.addLast(entry);
+            if (key != null) {
+                coalescable.put(key, entry);
+            }
+            if (!draining) {
+                draining = true;
+                schedule = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (schedule) {
+            executor.execute(drain);
+        }
+    }
+
+    /*
+     * Must hold the lock.
+     */
+    private void remove(Entry entry) {
+        if (entry.key != null && coalescable.get(entry.key) == entry) {
+            coalescable.remove(entry.key);
+        }
+    }
+
+    private void drain() {
+        for (; ; ) {
+            Entry entry;
+            lock.lock();
+            try {
+                entry = entries.pollFirst();
+                if (entry == null) {
+                    draining = false;
+                    return;
+                }
+                remove(entry);
+                if (entries.size() == capacity - 1) {
+                    // room for a blocked event
+                    notFull.signalAll();
+                }
+                if (pausedChannel != null && entries.size() <= capacity / 2) {
+                    log.info("Event queue drained, resuming reads from [{}]", pausedChannel.getRemoteAddress());
+                    pausedChannel.setReadable(true);
+                    pausedChannel = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+            try {
+                listeners.accept(entry.event);
+            } catch (Throwable t) {
+                log.error("Error caught notifying listeners of event [" + entry.event + ']', t);
+            }
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of events awaiting the listeners
+     */
+    public int getSize() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of times reading the socket was paused by the
+     * BLOCK policy
+     */
+    public long getBlockedCount() {
+        return blockedCount.get();
+    }
+
+    /**
+     * @return the number of queued events dropped by the DROP_OLDEST policy
+     */
+    public long getDroppedOldestCount() {
+        return droppedOldestCount.get();
+    }
+
+    /**
+     * @return the number of new events dropped, by the DROP_NEWEST policy or
+     * when the other policies found nothing to drop or replace
+     */
+    public long getDroppedNewestCount() {
+        return droppedNewestCount.get();
+    }
+
+    /**
+     * @return the number of events that replaced a queued event by the
+     * COALESCE policy
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    private static final class Entry {
+        // replaced under the lock by the COALESCE policy
+        EslEvent event;
+        final OverflowPolicy policy;
+        final String key;
+
+        Entry(EslEvent event, OverflowPolicy policy, String key) {
+            this.event = event;
+            this.policy = policy;
+            this.key = key;
+        }
+    }
+}
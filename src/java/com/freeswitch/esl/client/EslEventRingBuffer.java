@@ -0,0 +1,251 @@
+/*
+ * Copyright 2010 david varnes.
+ *
+ * Licensed under the Apache License, version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.freeswitch.esl.client;
+
+import com.freeswitch.esl.transport.event.EslEvent;
+import com.freeswitch.netty.util.ExternalResourceReleasable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands events from the thread reading a connection to its listeners through
+ * a preallocated ring, instead of queueing a task per listener per event.
+ * <p>
+ * The ring has a fixed number of slots, each holding an event. The connection
+ * publishes each event into the next slot and moves a cursor forward. Every
+ * listener has a thread and a sequence of its own, and takes all the events
+ * published since it last looked in one batch, then moves its sequence
+ * past them. Publishing waits while the slowest listener is a whole ring
+ * behind, so memory stays bounded and a slow listener slows the reading of
+ * the socket rather than filling the heap. The last listener to take an event
+ * clears its slot; a slot that two listeners pass at the same moment keeps its
+ * event until the slot is published to again, so at most a ring of events is
+ * retained.
+ * <p>
+ * Nothing is allocated per event. Each listener sees every event in the order
+ * received; listeners do not wait for each other except through the size of
+ * the ring. How an idle thread waits for the next event is chosen with a
+ * {@link WaitStrategy}, trading CPU for latency.
+ * <p>
+ * A ring has a single producer: it belongs to one {@link EslClient}, see
+ * {@link EslClient#setEventRingBuffer(EslEventRingBuffer)}.
+ */
+public class EslEventRingBuffer implements ExternalResourceReleasable {
+    private static final Logger log = LoggerFactory.getLogger(EslEventRingBuffer.class);
+
+    /**
+     * How a listener thread waits for events, and the connection for room in
+     * the ring.
+     */
+    public enum WaitStrategy {
+        /**
+         * Spin on the cursor: the lowest latency, a whole core per listener.
+         */
+        BUSY_SPIN {
+            void idle() {
+            }
+        },
+        /**
+         * Yield the core to other threads between looks at the cursor.
+         */
+        YIELD {
+            void idle() {
+                Thread.yield();
+            }
+        },
+        /**
+         * Sleep for a short while between looks at the cursor: little CPU
+         * when idle, at the cost of up to that while of latency.
+         */
+        PARK {
+            void idle() {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        };
+
+        private static final long PARK_NANOS = 50000;
+
+        abstract void idle();
+    }
+
+    private final EslEvent[] entries;
+    private final int mask;
+    private final WaitStrategy waitStrategy;
+    private final Sequence cursor = new Sequence();
+    private final Sequence[] sequences;
+    private final Thread[] threads;
+    private volatile boolean running = true;
+    // used by the producer only
+    private long nextSequence;
+    private long cachedMinimumSequence = -1;
+
+    /**
+     * Create a ring and start a thread for each listener. The threads are
+     * daemons, so a ring never released does not keep the JVM alive; they
+     * are stopped by {@link #releaseExternalResources()}.
+     *
+     * @param size         number of slots, a power of 2
+     * @param waitStrategy how idle threads wait
+     * @param listeners    to notify of every event
+     */
+    public EslEventRingBuffer(int size, WaitStrategy waitStrategy, IEslEventListener... listeners) {
+        if (size < 1 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("size must be a power of 2: " + size);
+        }
+        entries = new EslEvent[size];
+        mask = size - 1;
+        this.waitStrategy = waitStrategy;
+        sequences = new Sequence[listeners.length];
+        threads = new Thread[listeners.length];
+        for (int i = 0; i < listeners.length; i++) {
+            sequences[i] = new Sequence();
+            threads[i] = new Thread(new Consumer(listeners[i], sequences[i]), "EslEventRing-" + (i + 1));
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Publish an event to every listener, waiting while the ring is full. To
+     * be called by one thread at a time only.
+     *
+     * @param event to publish
+     */
+    public void publish(EslEvent event) {
+        long sequence = nextSequence++;
+        long wrapPoint = sequence - entries.length;
+        if (wrapPoint > cachedMinimumSequence) {
+            // the slot may still be unread, find how far the slowest listener got
+            long minimum;
+            while (wrapPoint > (minimum = minimumSequence())) {
+                if (!running) {
+                    throw new IllegalStateException("Event ring has been released");
+                }
+                waitStrategy.idle();
+            }
+            cachedMinimumSequence = minimum;
+        }
+        entries[(int) sequence & mask] = event;
+        cursor.lazySet(sequence);
+    }
+
+    private long minimumSequence() {
+        long minimum = cursor.get();
+        for (Sequence sequence : sequences) {
+            minimum = Math.min(minimum, sequence.get());
+        }
+        return minimum;
+    }
+
+    /**
+     * @return the number of slots
+     */
+    public int getSize() {
+        return entries.length;
+    }
+
+    /**
+     * @return the number of events published and not yet taken by the
+     * slowest listener
+     */
+    public long getBacklog() {
+        return cursor.get() - minimumSequence();
+    }
+
+    /**
+     * Stop the listener threads. Events not yet taken are not delivered.
+     */
+    public void releaseExternalResources() {
+        running = false;
+        for (Thread thread : threads) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private final class Consumer implements Runnable {
+        private final IEslEventListener listener;
+        private final Sequence sequence;
+
+        Consumer(IEslEventListener listener, Sequence sequence) {
+            this.listener = listener;
+            this.sequence = sequence;
+        }
+
+        public void run() {
+            long next = sequence.get() + 1;
+            while (running) {
+                long available = cursor.get();
+                if (available < next) {
+                    waitStrategy.idle();
+                    continue;
+                }
+                // the slots every other listener has passed can be cleared, as
+                // they are not published to again before this one moves on
+                long passed = othersMinimum();
+                // everything published so far in one batch
+                for (long s = next; s <= available; s++) {
+                    int index = (int) s & mask;
+                    deliver(entries[index]);
+                    if (s <= passed) {
+                        entries[index] = null;
+                    }
+                }
+                sequence.lazySet(available);
+                next = available + 1;
+            }
+        }
+
+        private long othersMinimum() {
+            long minimum = Long.MAX_VALUE;
+            for (Sequence other : sequences) {
+                if (other != sequence) {
+                    minimum = Math.min(minimum, other.get());
+                }
+            }
+            return minimum;
+        }
+
+        private void deliver(EslEvent event) {
+            try {
+                if (event.getEventName().equals("BACKGROUND_JOB")) {
+                    listener.backgroundJobResultReceived(event);
+                } else {
+                    listener.eventReceived(event);
+                }
+            } catch (Throwable t) {
+                log.error("Error caught notifying listener of event [" + event + ']', t);
+            }
+        }
+    }
+
+    /*
+     * Padded so that the sequences of different threads are not on one cache
+     * line.
+     */
+    @SuppressWarnings("unused")
+    private static final class Sequence extends AtomicLong {
+        private static final long serialVersionUID = 1L;
+
+        private long p1, p2, p3, p4, p5, p6, p7;
+
+        Sequence() {
+            super(-1);
+        }
+    }
+}
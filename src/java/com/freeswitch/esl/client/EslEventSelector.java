@@ -0,0 +1,96 @@
+/*
+ * Copyright 2010 david varnes.
+ *
+ * Licensed under the Apache License, version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.freeswitch.esl.client;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Describes the events a listener wants, for
+ * {@link EslClient#addEventListener(IEslEventListener, EslEventSelector...)}:
+ * an event name, for CUSTOM events optionally a subclass, and any number of
+ * header values the event must have. For example
+ * <p>
+ * <pre>
+ *   new EslEventSelector("CHANNEL_ANSWER")
+ *   new EslEventSelector("CUSTOM", "sofia::register").withHeader("Caller-Context", "default")
+ * </pre>
+ */
+public class EslEventSelector {
+    private final String eventName;
+    private final String subclass;
+    // sorted, so that selectors share the paths of the routing index
+    private final Map<String, String> headers = new TreeMap<String, String>();
+
+    /**
+     * @param eventName the Event-Name of the events
+     */
+    public EslEventSelector(String eventName) {
+        this(eventName, null);
+    }
+
+    /**
+     * @param eventName the Event-Name of the events
+     * @param subclass  the Event-Subclass of the events, or null for any
+     */
+    public EslEventSelector(String eventName, String subclass) {
+        if (eventName == null) {
+            throw new IllegalArgumentException("eventName must not be null");
+        }
+        this.eventName = eventName;
+        this.subclass = subclass;
+    }
+
+    /**
+     * Only select the events with a header of this value.
+     *
+     * @param name  of the header
+     * @param value the header must have
+     * @return this selector
+     */
+    public EslEventSelector withHeader(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    public String getEventName() {
+        return eventName;
+    }
+
+    public String getSubclass() {
+        return subclass;
+    }
+
+    /**
+     * @return the header values the events must have, by header name
+     */
+    public Map<String, String> getHeaders() {
+        return Collections.unmodifiableMap(headers);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(eventName);
+        if (subclass != null) {
+            sb.append(' ').append(subclass);
+        }
+        if (!headers.isEmpty()) {
+            sb.append(" where ").append(headers);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2010 david varnes.
+ *
+ * Licensed under the Apache License, version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.freeswitch.esl.client;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * One FreeSWITCH server of an {@link EslClusterClient}, with the
+ * {@link EslClient} connected to it and its health as last checked.
+ */
+public class EslNode {
+    private final String name;
+    private final String host;
+    private final int port;
+    private final String password;
+    private final EslClient client;
+    private volatile boolean healthy;
+    // the last connect or health check, while it has not completed
+    volatile CompletableFuture<?> check;
+
+    EslNode(String name, String host, int port, String password, EslClient client) {
+        this.name = name;
+        this.host = host;
+        this.port = port;
+        this.password = password;
+        this.client = client;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    String getPassword() {
+        return password;
+    }
+
+    /**
+     * @return the client connected to this node
+     */
+    public EslClient getClient() {
+        return client;
+    }
+
+    /**
+     * @return true if the node is connected and answered its last health
+     * check in time
+     */
+    public boolean isHealthy() {
+        return healthy && client.canSend();
+    }
+
+    void setHealthy(boolean healthy) {
+        this.healthy = healthy;
+    }
+
+    /**
+     * @return the number of commands sent to this node and not yet answered
+     */
+    public int getOutstandingCommandCount() {
+        return client.getOutstandingCommandCount();
+    }
+
+    @Override
+    public String toString() {
+        return name + " [" + host + ':' + port + ']';
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2010 david varnes.
+ *
+ * Licensed under the Apache License, version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.freeswitch.esl.client;
+
+import com.freeswitch.esl.client.internal.VirtualThreads;
+import com.freeswitch.netty.channel.socket.nio.NioClientBossPool;
+import com.freeswitch.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import com.freeswitch.netty.channel.socket.nio.NioWorkerPool;
+import com.freeswitch.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+import com.freeswitch.netty.util.ExternalResourceReleasable;
+import com.freeswitch.netty.util.HashedWheelTimer;
+import com.freeswitch.netty.util.Timer;
+import com.freeswitch.netty.util.internal.ExecutorUtil;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads and timer shared by any number of {@link EslClient}s.
+ * <p>
+ * By default each {@link EslClient} connection has its own boss and worker
+ * threads, connect timer, pipeline executor and listener notifier threads.
+ * A client created with an {@link EslRuntime} uses the runtime's instead, so
+ * the number of threads stays the same however many connections are made:
+ * <ul>
+ * <li>one boss thread to make connections</li>
+ * <li>a pool of NIO workers, by default one per core, each serving many
+ * connections</li>
+ * <li>one {@link HashedWheelTimer} for connect and command timeouts</li>
+ * <li>one ordered executor for the ESL pipelines, which still handles the
+ * messages of each connection in order</li>
+ * <li>one pool to notify event listeners, each client keeping its own
+ * notifications in order</li>
+ * <li>one unbounded pool to complete the command futures, so that their
+ * dependent stages run off the IO threads</li>
+ * </ul>
+ * With {@link #newVirtualThreadRuntime(int)} the pipeline executor and the
+ * listener notifications run on virtual threads instead, so that a handler or
+ * listener blocked on a command reply holds up only its own connection.
+ * <p>
+ * The runtime is started when created and stays up until
+ * {@link #releaseExternalResources()} is called, after the clients using it
+ * have been closed. Its threads are daemons, so a runtime never released does
+ * not keep the JVM alive.
+ */
+public class EslRuntime implements ExternalResourceReleasable {
+    private final ExecutorService bossExecutor;
+    private final ExecutorService workerExecutor;
+    private final HashedWheelTimer timer;
+    private final NioClientSocketChannelFactory channelFactory;
+    private final OrderedMemoryAwareThreadPoolExecutor handlerExecutor;
+    private final ExecutorService eventExecutor;
+    private final ExecutorService replyExecutor;
+
+    /**
+     * Create a runtime with one NIO worker and one event notifier thread per
+     * core, and 16 pipeline executor threads.
+     */
+    public EslRuntime() {
+        this(Runtime.getRuntime().availableProcessors(), 16, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param workerCount        number of NIO worker threads
+     * @param handlerThreadCount number of threads handling decoded messages
+     *                           in the ESL pipelines
+     * @param eventThreadCount   number of threads notifying event listeners
+     */
+    public EslRuntime(int workerCount, int handlerThreadCount, int eventThreadCount) {
+        // each connection is still limited to 1 MiB of queued messages, the
+        // pool as a whole is not as it serves every connection
+        this(workerCount,
+                new OrderedMemoryAwareThreadPoolExecutor(handlerThreadCount, 1048576, 0,
+                        30, TimeUnit.SECONDS, new NamedThreadFactory("EslHandler-")),
+                Executors.newFixedThreadPool(eventThreadCount, new NamedThreadFactory("EslEventNotifier-")),
+                Executors.newCachedThreadPool(new NamedThreadFactory("EslReply-")));
+    }
+
+    private EslRuntime(int workerCount, OrderedMemoryAwareThreadPoolExecutor handlerExecutor,
+                       ExecutorService eventExecutor, ExecutorService replyExecutor) {
+        bossExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("EslBoss-"));
+        workerExecutor = Executors.newCachedThreadPool(new NamedThreadFactory("EslWorker-"));
+        timer = new HashedWheelTimer(new NamedThreadFactory("EslTimer-"));
+        channelFactory = new NioClientSocketChannelFactory(
+                new NioClientBossPool(bossExecutor, 1, timer, null),
+                new NioWorkerPool(workerExecutor, workerCount));
+        this.handlerExecutor = handlerExecutor;
+        this.eventExecutor = eventExecutor;
+        this.replyExecutor = replyExecutor;
+    }
+
+    /**
+     * Create a runtime whose pipelines and listener notifications run on
+     * virtual threads, keeping the order of the messages and events of each
+     * connection. The boss, the NIO workers and the timer stay on platform
+     * threads.
+     *
+     * @param workerCount number of NIO worker threads
+     * @return the runtime
+     * @throws IllegalStateException if this JDK has no virtual threads, see
+     *                               {@link VirtualThreads#isSupported()}
+     */
+    public static EslRuntime newVirtualThreadRuntime(int workerCount) {
+        return new EslRuntime(workerCount,
+                VirtualThreads.newOrderedExecutor("EslHandler-", 65536),
+                VirtualThreads.newExecutor("EslEventNotifier-"),
+                VirtualThreads.newExecutor("EslReply-"));
+    }
+
+    /**
+     * @return the channel factory making connections with the shared boss
+     * and worker threads
+     */
+    public NioClientSocketChannelFactory getChannelFactory() {
+        return channelFactory;
+    }
+
+    /**
+     * @return the shared timer
+     */
+    public Timer getTimer() {
+        return timer;
+    }
+
+    /**
+     * @return the executor for the pipelines of all connections
+     */
+    public OrderedMemoryAwareThreadPoolExecutor getHandlerExecutor() {
+        return handlerExecutor;
+    }
+
+    /**
+     * @return the executor notifying the listeners of all clients
+     */
+    public ExecutorService getEventExecutor() {
+        return eventExecutor;
+    }
+
+    /**
+     * @return the executor completing the command futures of all clients
+     */
+    public ExecutorService getReplyExecutor() {
+        return replyExecutor;
+    }
+
+    /**
+     * Stop all the threads and the timer of this runtime.
+     */
+    public void releaseExternalResources() {
+        channelFactory.releaseExternalResources();
+        ExecutorUtil.terminate(bossExecutor, workerExecutor, handlerExecutor, eventExecutor, replyExecutor);
+        timer.stop();
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+        private final String prefix;
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2010 david varnes.
+ *
+ * Licensed under the Apache License, version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.freeswitch.esl.client;
+
+import com.freeswitch.esl.transport.event.EslEvent;
+
+/**
+ * Interface for observers of the merged event stream of an
+ * {@link EslClusterClient}. Each event is tagged with the {@link EslNode} it
+ * came from.
+ * <p>
+ * The events of one node are notified in the order they were received off
+ * the wire, events of different nodes may be notified concurrently.
+ */
+public interface IEslClusterEventListener {
+    /**
+     * Signal of a server initiated event.
+     *
+     * @param node  the node that sent the event
+     * @param event as an {@link EslEvent}
+     */
+    void eventReceived(EslNode node, EslEvent event);
+
+    /**
+     * Signal of an event containing the result of a client requested background
+     * job. The Job-UUID will be available as an event header of that name.
+     *
+     * @param node  the node that ran the job
+     * @param event as an {@link EslEvent}
+     */
+    void backgroundJobResultReceived(EslNode node, EslEvent event);
+}
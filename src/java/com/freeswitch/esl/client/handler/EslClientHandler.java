@@ -23,6 +23,7 @@ import com.freeswitch.esl.transport.event.EslEvent;
 import com.freeswitch.esl.transport.message.EslHeaders.Value;
 import com.freeswitch.esl.transport.message.EslMessage;
 import com.freeswitch.netty.channel.ChannelHandlerContext;
+import com.freeswitch.netty.channel.ChannelStateEvent;
 import com.freeswitch.netty.handler.execution.ExecutionHandler;
 
 /**
@@ -73,8 +74,14 @@ public class EslClientHandler extends AbstractEslClientHandler {
 
     @Override
     protected void handleDisconnectionNotice() {
+        // the server closes the socket next, which signals the listener
         log.debug("Received disconnection notice");
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
         listener.disconnected();
+        super.channelClosed(ctx, e);
     }
 
 }
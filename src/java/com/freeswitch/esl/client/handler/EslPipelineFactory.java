@@ -17,14 +17,17 @@ package com.freeswitch.esl.client.handler;
 
 import com.freeswitch.esl.client.EslClient;
 import com.freeswitch.esl.client.internal.debug.ExecutionHandler;
+import com.freeswitch.esl.transport.message.EslCommandEncoder;
 import com.freeswitch.esl.transport.message.EslFrameDecoder;
+import com.freeswitch.esl.transport.message.EslWriteCoalescer;
 import com.freeswitch.netty.channel.ChannelHandler;
 import com.freeswitch.netty.channel.ChannelPipeline;
 import com.freeswitch.netty.channel.ChannelPipelineFactory;
 import com.freeswitch.netty.channel.Channels;
-import com.freeswitch.netty.handler.codec.string.StringEncoder;
 import com.freeswitch.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 
+import java.util.concurrent.Executor;
+
 /**
  * End users of the {@link EslClient} should not need to use this class.
  * <p>
@@ -35,18 +38,32 @@ import com.freeswitch.netty.handler.execution.OrderedMemoryAwareThreadPoolExecut
  */
 public class EslPipelineFactory implements ChannelPipelineFactory {
     private final ChannelHandler handler;
+    private final Executor executor;
 
     public EslPipelineFactory(ChannelHandler handler) {
+        this(handler, null);
+    }
+
+    /**
+     * @param handler  the client handler
+     * @param executor executor shared with other pipelines, or null to create
+     *                 one for this pipeline
+     */
+    public EslPipelineFactory(ChannelHandler handler, Executor executor) {
         this.handler = handler;
+        this.executor = executor;
     }
 
     public ChannelPipeline getPipeline() throws Exception {
         ChannelPipeline pipeline = Channels.pipeline();
-        pipeline.addLast("encoder", new StringEncoder());
+        // Batch the encoded commands into as few socket writes as possible
+        pipeline.addLast("coalescer", new EslWriteCoalescer());
+        pipeline.addLast("encoder", new EslCommandEncoder());
         pipeline.addLast("decoder", new EslFrameDecoder(8192));
         // Add an executor to ensure separate thread for each upstream message
         // from here
-        pipeline.addLast("executor", new ExecutionHandler(new OrderedMemoryAwareThreadPoolExecutor(16, 1048576, 1048576)));
+        pipeline.addLast("executor", new ExecutionHandler(executor != null ? executor
+                : new OrderedMemoryAwareThreadPoolExecutor(16, 1048576, 1048576)));
 
         // now the handler client logic
         pipeline.addLast("clientHandler", handler);
@@ -15,21 +15,40 @@
  */
 package com.freeswitch.esl.client.internal;
 
+import com.freeswitch.esl.transport.EslCommand;
+import com.freeswitch.esl.transport.SendMsg;
 import com.freeswitch.esl.transport.event.EslEvent;
 import com.freeswitch.esl.transport.message.EslHeaders.Name;
 import com.freeswitch.esl.transport.message.EslHeaders.Value;
 import com.freeswitch.esl.transport.message.EslMessage;
 import com.freeswitch.netty.channel.*;
 import com.freeswitch.netty.handler.execution.ExecutionHandler;
+import com.freeswitch.netty.util.Timeout;
+import com.freeswitch.netty.util.Timer;
+import com.freeswitch.netty.util.TimerTask;
+import com.freeswitch.netty.util.internal.DeadLockProofWorker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 /**
  * Specialised {@link ChannelUpstreamHandler} that implements the logic of an
@@ -37,12 +56,19 @@ import java.util.concurrent.locks.ReentrantLock;
  * handler expects to receive decoded {@link EslMessage} or {@link EslEvent}
  * objects. The key responsibilities for this class are:
  * <ul>
- * <li>To synthesise a synchronous command/response api. All IO operations using
- * the underlying Netty library are intrinsically asynchronous which provides
- * for excellent response and scalability. This class provides for a blocking
- * wait mechanism for responses to commands issued to the server. A key
- * assumption here is that the FreeSWITCH server will process synchronous
- * requests in the order they are received.</li>
+ * <li>To synthesise a command/response api. All IO operations using the
+ * underlying Netty library are intrinsically asynchronous which provides for
+ * excellent response and scalability. This class matches responses to the
+ * commands issued to the server, completing a future for each, and provides
+ * a blocking wait on top of that. A key assumption here is that the
+ * FreeSWITCH server will process requests in the order they are received,
+ * which also allows many commands to be in flight at once, up to a
+ * configurable window. A command can be given a deadline, after which its
+ * future fails while its reply keeps its place in that order.</li>
+ * <li>Replies are matched to their commands on the IO thread, but the futures
+ * are completed on a separate reply executor, see
+ * {@link #setReplyExecutor(Executor)}, so that code depending on a reply may
+ * block, even waiting for another reply, without stalling the connection.</li>
  * <li>Concrete sub classes are expected to 'terminate' the Netty IO processing
  * pipeline (ie be the 'last' handler).</li>
  * </ul>
@@ -57,99 +83,522 @@ public abstract class AbstractEslClientHandler extends SimpleChannelUpstreamHand
     public static final String MESSAGE_TERMINATOR = "\n\n";
     public static final String LINE_TERMINATOR = "\n";
 
+    /*
+     * Unbounded, as a dependent stage may block waiting for another reply,
+     * which must not queue behind it.
+     */
+    private static final Executor DEFAULT_REPLY_EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "EslReply-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
     protected final Logger log = LoggerFactory.getLogger(this.getClass());
 
     private final Lock syncLock = new ReentrantLock();
-    private final Queue<SyncCallback> syncCallbacks = new ConcurrentLinkedQueue<SyncCallback>();
+    private final Queue<ReplyCallback> syncCallbacks = new ConcurrentLinkedQueue<ReplyCallback>();
+    private final Queue<PendingCommand> pendingCommands = new ConcurrentLinkedQueue<PendingCommand>();
+    // guarded by syncLock
+    private int inFlight;
+    private boolean closed;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private volatile int maxInFlight = Integer.MAX_VALUE;
+    private volatile Timer timer;
+    // completes the futures in the order the replies arrived
+    private volatile SerialExecutor replyExecutor = new SerialExecutor(DEFAULT_REPLY_EXECUTOR, true);
+    private volatile long commandTimeoutMillis;
+    private final AtomicLong timeoutCount = new AtomicLong();
+
+    @Override
+    public void channelOpen(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        /*
+         * Fail the commands awaiting a reply as soon as the channel closes, on
+         * the IO thread, as the handler thread may itself be waiting for one.
+         */
+        e.getChannel().getCloseFuture().addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) {
+                failOutstanding(new ClosedChannelException());
+            }
+        });
+        super.channelOpen(ctx, e);
+    }
 
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
         if (e.getMessage() instanceof EslMessage) {
             EslMessage message = (EslMessage) e.getMessage();
             String contentType = message.getContentType();
-            if (contentType.equals(Value.TEXT_EVENT_PLAIN) || contentType.equals(Value.TEXT_EVENT_XML)) {
+            if (contentType.equals(Value.TEXT_EVENT_PLAIN) || contentType.equals(Value.TEXT_EVENT_JSON) || contentType.equals(Value.TEXT_EVENT_XML)) {
                 // transform into an event
                 EslEvent eslEvent = new EslEvent(message);
                 handleEslEvent(ctx, eslEvent);
             } else {
                 handleEslMessage(ctx, (EslMessage) e.getMessage());
             }
+        } else if (e.getMessage() instanceof EslEvent) {
+            // already parsed by the decoder
+            handleEslEvent(ctx, (EslEvent) e.getMessage());
         } else {
             throw new IllegalStateException("Unexpected message type: " + e.getMessage().getClass());
         }
     }
 
     /**
-     * Synthesise a synchronous command/response by creating a callback object
-     * which is placed in queue and blocks waiting for another IO thread to
-     * process an incoming {@link EslMessage} and attach it to the callback.
+     * Send a single line command, returning a future that is completed with
+     * the response. The command is placed in a queue and matched by the IO
+     * thread that processes the incoming {@link EslMessage}, then the future
+     * is completed on the reply executor, so no thread waits for the
+     * response and its dependent stages may block.
+     *
+     * @param channel
+     * @param command single string to send
+     * @return future of the {@link EslMessage} response to this command
+     */
+    public CompletableFuture<EslMessage> sendSingleLineCommandAsync(Channel channel, final String command) {
+        return sendCommand(channel, new EslCommand(command), commandTimeoutMillis);
+    }
+
+    /**
+     * Send a structured single line command, returning a future that is
+     * completed with the response. See
+     * {@link #sendSingleLineCommandAsync(Channel, String)}.
+     *
+     * @param channel
+     * @param command to send
+     * @return future of the {@link EslMessage} response to this command
+     */
+    public CompletableFuture<EslMessage> sendCommandAsync(Channel channel, final EslCommand command) {
+        return sendCommand(channel, command, commandTimeoutMillis);
+    }
+
+    /**
+     * Send a structured single line command with its own timeout, for a
+     * command known to be slower or more urgent than most. See
+     * {@link #setCommandTimeout(Timer, long)}.
+     *
+     * @param channel
+     * @param command       to send
+     * @param timeoutMillis milliseconds to wait for the reply, 0 to wait for
+     *                      as long as it takes
+     * @return future of the {@link EslMessage} response to this command
+     */
+    public CompletableFuture<EslMessage> sendCommandAsync(Channel channel, final EslCommand command, long timeoutMillis) {
+        return sendCommand(channel, command, timeoutMillis);
+    }
+
+    /**
+     * Send a {@link SendMsg} command, returning a future that is completed
+     * with the response. See
+     * {@link #sendSingleLineCommandAsync(Channel, String)}.
+     *
+     * @param channel
+     * @param sendMsg to send
+     * @return future of the {@link EslMessage} response to this command
+     */
+    public CompletableFuture<EslMessage> sendCommandAsync(Channel channel, final SendMsg sendMsg) {
+        return sendCommand(channel, sendMsg, commandTimeoutMillis);
+    }
+
+    /**
+     * Send a multi line command, returning a future that is completed with
+     * the response. See {@link #sendSingleLineCommandAsync(Channel, String)}.
+     *
+     * @param channel
+     * @param commandLines List of command lines to send
+     * @return future of the {@link EslMessage} response to this command
+     */
+    public CompletableFuture<EslMessage> sendMultiLineCommandAsync(Channel channel, final List<String> commandLines) {
+        // the encoder writes each line, then the double line terminator at the end
+        return sendCommand(channel, commandLines, commandTimeoutMillis);
+    }
+
+    /**
+     * Send a bgapi command, returning a future that is completed with the Job
+     * UUID that the response event will have.
+     *
+     * @param channel
+     * @param command
+     * @return future of the Job-UUID as a string
+     */
+    public CompletableFuture<String> sendBackgroundCommandAsync(Channel channel, final String command) {
+        return sendBackgroundCommandAsync(channel, new EslCommand(command));
+    }
+
+    /**
+     * Send a structured bgapi command, returning a future that is completed
+     * with the Job UUID that the response event will have.
+     *
+     * @param channel
+     * @param command
+     * @return future of the Job-UUID as a string
+     */
+    public CompletableFuture<String> sendBackgroundCommandAsync(Channel channel, final EslCommand command) {
+        /*
+         * The reply carries the Job-UUID to return, the results of the
+         * actual job request will be returned by the server as an async event.
+         */
+        return sendCommandAsync(channel, command).thenApply(new Function<EslMessage, String>() {
+            public String apply(EslMessage response) {
+                if (response.hasHeader(Name.JOB_UUID)) {
+                    return response.getHeaderValue(Name.JOB_UUID);
+                } else {
+                    throw new IllegalStateException("Missing Job-UUID header in bgapi response");
+                }
+            }
+        });
+    }
+
+    /**
+     * Send a structured bgapi command, returning a future that is completed
+     * with the BACKGROUND_JOB event carrying its result. The job is registered
+     * when the reply with its Job-UUID is handled, before its event can be.
+     *
+     * @param channel
+     * @param command
+     * @param registry to await the event in
+     * @return future of the BACKGROUND_JOB event
+     */
+    public CompletableFuture<EslEvent> sendBackgroundJobAsync(Channel channel, final EslCommand command,
+                                                              final BackgroundJobRegistry registry) {
+        ReplyCallback callback = new ReplyCallback(commandTimeoutMillis);
+        // added before the command is sent, to run as part of handling the reply
+        CompletableFuture<EslEvent> result = callback.thenCompose(new Function<EslMessage, CompletableFuture<EslEvent>>() {
+            public CompletableFuture<EslEvent> apply(EslMessage response) {
+                if (!response.hasHeader(Name.JOB_UUID)) {
+                    throw new IllegalStateException("Missing Job-UUID header in bgapi response");
+                }
+                return registry.register(response.getHeaderValue(Name.JOB_UUID));
+            }
+        });
+        send(channel, command, callback);
+        return relay(result);
+    }
+
+    /**
+     * Synthesise a synchronous command/response by blocking on the future
+     * returned by {@link #sendSingleLineCommandAsync(Channel, String)}.
      *
      * @param channel
      * @param command single string to send
-     * @return the {@link EslMessage} attached to this command's callback
+     * @return the {@link EslMessage} response to this command
      */
     public EslMessage sendSyncSingleLineCommand(Channel channel, final String command) {
-        SyncCallback callback = new SyncCallback();
+        return await(sendSingleLineCommandAsync(channel, command));
+    }
+
+    /**
+     * Synthesise a synchronous command/response by blocking on the future
+     * returned by {@link #sendMultiLineCommandAsync(Channel, List)}.
+     *
+     * @param channel
+     * @param commandLines List of command lines to send
+     * @return the {@link EslMessage} response to this command
+     */
+    public EslMessage sendSyncMultiLineCommand(Channel channel, final List<String> commandLines) {
+        return await(sendMultiLineCommandAsync(channel, commandLines));
+    }
+
+    /**
+     * Returns the Job UUID of that the response event will have.
+     *
+     * @param channel
+     * @param command
+     * @return Job-UUID as a string
+     */
+    public String sendAsyncCommand(Channel channel, final String command) {
+        return await(sendBackgroundCommandAsync(channel, command));
+    }
+
+    /**
+     * Block until the future is complete and return its value. A failure is
+     * rethrown as it was raised, if unchecked, otherwise wrapped in a
+     * {@link RuntimeException}. Called from a dependent stage of a command
+     * future, the replies behind it are completed on another thread
+     * meanwhile.
+     *
+     * @param future
+     * @return the value of the future
+     * @throws IllegalStateException if called on an IO thread, which the
+     *                               reply may need to arrive
+     */
+    public static <T> T await(Future<T> future) {
+        if (!future.isDone() && DeadLockProofWorker.PARENT.get() != null) {
+            throw new IllegalStateException("Must not wait for a reply on an I/O thread");
+        }
+        if (!future.isDone()) {
+            SerialExecutor.detachCurrent();
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Set the maximum number of commands that may be written to the server
+     * and awaiting a reply at one time. Commands sent while the window is full
+     * are held back, in order, and written as replies arrive. Unbounded by
+     * default.
+     *
+     * @param maxInFlight the window size, at least 1
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1: " + maxInFlight);
+        }
         syncLock.lock();
         try {
-            syncCallbacks.add(callback);
-            channel.write(command + MESSAGE_TERMINATOR);
+            this.maxInFlight = maxInFlight;
+            writePending();
         } finally {
             syncLock.unlock();
         }
+    }
 
-        // Block until the response is available
-        return callback.get();
+    public int getMaxInFlight() {
+        return maxInFlight;
     }
 
     /**
-     * Synthesise a synchronous command/response by creating a callback object
-     * which is placed in queue and blocks waiting for another IO thread to
-     * process an incoming {@link EslMessage} and attach it to the callback.
+     * Fail the future of a command with a {@link TimeoutException} if its
+     * reply has not arrived in time. The deadlines are kept on the timer, so
+     * any number of them cost the same to track.
+     * <p>
+     * The command keeps its place in the reply order: the server still
+     * answers it, and that late reply is discarded rather than given to the
+     * caller of the next command. A command that times out while held back
+     * by a full window is not sent at all.
      *
-     * @param channel
-     * @param command List of command lines to send
-     * @return the {@link EslMessage} attached to this command's callback
+     * @param timer                to track the deadlines on
+     * @param commandTimeoutMillis milliseconds to wait for a reply, 0 to wait
+     *                             for as long as it takes
      */
-    public EslMessage sendSyncMultiLineCommand(Channel channel, final List<String> commandLines) {
-        SyncCallback callback = new SyncCallback();
-        // Build command with double line terminator at the end
-        StringBuilder sb = new StringBuilder();
-        for (String line : commandLines) {
-            sb.append(line);
-            sb.append(LINE_TERMINATOR);
+    public void setCommandTimeout(Timer timer, long commandTimeoutMillis) {
+        if (commandTimeoutMillis < 0) {
+            throw new IllegalArgumentException("commandTimeoutMillis must not be negative: " + commandTimeoutMillis);
         }
-        sb.append(LINE_TERMINATOR);
+        this.timer = timer;
+        this.commandTimeoutMillis = commandTimeoutMillis;
+    }
 
+    /**
+     * Set the executor that completes the futures of the commands, and so
+     * runs their dependent stages. The futures of a handler are completed
+     * one at a time, in the order the replies arrived, except that a stage
+     * waiting for a reply with {@link #await(Future)} or the future's
+     * {@code get} or {@code join} lets the later ones go on on another
+     * thread. The executor must therefore not be bounded by the number of
+     * stages that may block at once, nor run its tasks one at a time. A
+     * cached thread pool shared by all handlers by default.
+     *
+     * @param replyExecutor to complete the futures on
+     */
+    public void setReplyExecutor(Executor replyExecutor) {
+        if (replyExecutor == null) {
+            throw new NullPointerException("replyExecutor");
+        }
+        this.replyExecutor = new SerialExecutor(replyExecutor, true);
+    }
+
+    public long getCommandTimeoutMillis() {
+        return commandTimeoutMillis;
+    }
+
+    /**
+     * @return the number of commands whose reply did not arrive in time
+     */
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    /**
+     * @return the number of commands written and awaiting a reply
+     */
+    public int getInFlightCount() {
+        return syncCallbacks.size();
+    }
+
+    /**
+     * @return the number of commands held back by a full window
+     */
+    public int getPendingCount() {
+        return pendingCommands.size();
+    }
+
+    /**
+     * @return the number of commands sent and not yet answered, whether
+     * written or held back
+     */
+    public int getOutstandingCount() {
+        return outstanding.get();
+    }
+
+    private CompletableFuture<EslMessage> sendCommand(Channel channel, Object command, long timeoutMillis) {
+        ReplyCallback callback = new ReplyCallback(timeoutMillis);
+        send(channel, command, callback);
+        return relay(callback);
+    }
+
+    /*
+     * A future completed on the reply executor with the outcome of the
+     * source, which is completed on the IO or timer thread. Cancelling it
+     * cancels the source, so that a command held back is not sent.
+     */
+    private <T> CompletableFuture<T> relay(final CompletableFuture<T> source) {
+        final CompletableFuture<T> result = new ReplyFuture<T>();
+        final Executor executor = replyExecutor;
+        source.whenComplete(new BiConsumer<T, Throwable>() {
+            public void accept(final T value, final Throwable cause) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        if (cause != null) {
+                            result.completeExceptionally(cause);
+                        } else {
+                            result.complete(value);
+                        }
+                    }
+                });
+            }
+        });
+        result.whenComplete(new BiConsumer<T, Throwable>() {
+            public void accept(T value, Throwable cause) {
+                if (result.isCancelled()) {
+                    source.cancel(false);
+                }
+            }
+        });
+        return result;
+    }
+
+    private void send(Channel channel, Object command, ReplyCallback callback) {
+        long timeoutMillis = callback.timeoutMillis;
+        Timer timer = this.timer;
+        if (timeoutMillis > 0 && timer != null) {
+            callback.timeout = timer.newTimeout(callback, timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        boolean rejected = false;
+        // the callbacks must be queued in the same order the commands are written
         syncLock.lock();
         try {
-            syncCallbacks.add(callback);
-            channel.write(sb.toString());
+            if (closed) {
+                rejected = true;
+            } else if (inFlight < maxInFlight && pendingCommands.isEmpty()) {
+                outstanding.incrementAndGet();
+                write(channel, command, callback);
+            } else {
+                outstanding.incrementAndGet();
+                pendingCommands.add(new PendingCommand(channel, command, callback));
+            }
         } finally {
             syncLock.unlock();
         }
+        if (rejected) {
+            callback.cancelTimeout();
+            callback.completeExceptionally(new ClosedChannelException());
+        }
+    }
 
-        // Block until the response is available
-        return callback.get();
+    /*
+     * Must hold syncLock.
+     */
+    private void write(Channel channel, Object command, final ReplyCallback callback) {
+        inFlight++;
+        syncCallbacks.add(callback);
+        channel.write(command).addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) {
+                if (!future.isSuccess() && syncCallbacks.remove(callback)) {
+                    // never reached the server, so no reply will come for it
+                    releaseSlot();
+                    outstanding.decrementAndGet();
+                    callback.cancelTimeout();
+                    callback.completeExceptionally(future.getCause());
+                }
+            }
+        });
     }
 
-    /**
-     * Returns the Job UUID of that the response event will have.
-     *
-     * @param channel
-     * @param command
-     * @return Job-UUID as a string
+    /*
+     * Must hold syncLock.
      */
-    public String sendAsyncCommand(Channel channel, final String command) {
-        /*
-		 * Send synchronously to get the Job-UUID to return, the results of the
-		 * actual job request will be returned by the server as an async event.
-		 */
-        EslMessage response = sendSyncSingleLineCommand(channel, command);
-        if (response.hasHeader(Name.JOB_UUID)) {
-            return response.getHeaderValue(Name.JOB_UUID);
-        } else {
-            throw new IllegalStateException("Missing Job-UUID header in bgapi response");
+    private void writePending() {
+        PendingCommand next;
+        while (inFlight < maxInFlight && (next = pendingCommands.poll()) != null) {
+            if (next.callback.isDone()) {
+                // timed out waiting for the window, no need to send it
+                outstanding.decrementAndGet();
+                continue;
+            }
+            write(next.channel, next.command, next.callback);
+        }
+    }
+
+    private void releaseSlot() {
+        syncLock.lock();
+        try {
+            inFlight--;
+            writePending();
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    /*
+     * No reply will come for the commands written or held back once the
+     * connection is gone.
+     */
+    private void failOutstanding(Throwable cause) {
+        List<ReplyCallback> failed = new ArrayList<ReplyCallback>();
+        syncLock.lock();
+        try {
+            closed = true;
+            ReplyCallback callback;
+            while ((callback = syncCallbacks.poll()) != null) {
+                failed.add(callback);
+            }
+            PendingCommand pending;
+            while ((pending = pendingCommands.poll()) != null) {
+                failed.add(pending.callback);
+            }
+            inFlight = 0;
+        } finally {
+            syncLock.unlock();
+        }
+        if (!failed.isEmpty()) {
+            log.debug("Failing {} commands left without a reply by the closed connection", failed.size());
+            outstanding.addAndGet(-failed.size());
+            for (ReplyCallback callback : failed) {
+                callback.cancelTimeout();
+                callback.completeExceptionally(cause);
+            }
+        }
+    }
+
+    private void handleReply(EslMessage message) {
+        ReplyCallback callback = syncCallbacks.poll();
+        if (callback == null) {
+            log.warn("Reply without a command awaiting it [{}]", message);
+            return;
+        }
+        // put the next command on the wire before running the caller's code
+        releaseSlot();
+        outstanding.decrementAndGet();
+        callback.cancelTimeout();
+        if (!callback.complete(message)) {
+            log.debug("Discarding reply to a command that timed out [{}]", message);
         }
     }
 
@@ -158,10 +607,10 @@ public abstract class AbstractEslClientHandler extends SimpleChannelUpstreamHand
 
         if (contentType.equals(Value.API_RESPONSE)) {
             log.debug("Api response received [{}]", message);
-            syncCallbacks.poll().handle(message);
+            handleReply(message);
         } else if (contentType.equals(Value.COMMAND_REPLY)) {
             log.trace("Command reply received [{}]", message);
-            syncCallbacks.poll().handle(message);
+            handleReply(message);
         } else if (contentType.equals(Value.AUTH_REQUEST)) {
             log.trace("Auth request received [{}]", message);
             handleAuthRequest(ctx);
@@ -179,38 +628,70 @@ public abstract class AbstractEslClientHandler extends SimpleChannelUpstreamHand
 
     protected abstract void handleDisconnectionNotice();
 
-    private static class SyncCallback {
-        private static final Logger log = LoggerFactory.getLogger(SyncCallback.class);
-        private final CountDownLatch latch = new CountDownLatch(1);
-        private EslMessage response;
+    /*
+     * The future of a command, failed by the timer if no reply arrives in time.
+     */
+    /*
+     * Waiting for a reply from a dependent stage must not hold up the
+     * completion of the replies behind it, which may include that one.
+     */
+    private static final class ReplyFuture<T> extends CompletableFuture<T> {
+        @Override
+        public T get() throws InterruptedException, ExecutionException {
+            if (!isDone()) {
+                SerialExecutor.detachCurrent();
+            }
+            return super.get();
+        }
+
+        @Override
+        public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!isDone()) {
+                SerialExecutor.detachCurrent();
+            }
+            return super.get(timeout, unit);
+        }
 
-        /**
-         * Block waiting for the countdown latch to be released, then return the
-         * associated response object.
-         *
-         * @return
-         */
-        EslMessage get() {
-            try {
-                log.trace("awaiting latch ... ");
-                latch.await();
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
+        @Override
+        public T join() {
+            if (!isDone()) {
+                SerialExecutor.detachCurrent();
             }
+            return super.join();
+        }
+    }
+
+    private final class ReplyCallback extends CompletableFuture<EslMessage> implements TimerTask {
+        final long timeoutMillis;
+        volatile Timeout timeout;
 
-            log.trace("returning response [{}]", response);
-            return response;
+        ReplyCallback(long timeoutMillis) {
+            this.timeoutMillis = timeoutMillis;
         }
 
-        /**
-         * Attach this response to the callback and release the countdown latch.
-         *
-         * @param response
-         */
-        void handle(EslMessage response) {
-            this.response = response;
-            log.trace("releasing latch for response [{}]", response);
-            latch.countDown();
+        public void run(Timeout timeout) {
+            if (completeExceptionally(new TimeoutException("No reply within " + timeoutMillis + "ms"))) {
+                timeoutCount.incrementAndGet();
+            }
+        }
+
+        void cancelTimeout() {
+            Timeout timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+    }
+
+    private static final class PendingCommand {
+        final Channel channel;
+        final Object command;
+        final ReplyCallback callback;
+
+        PendingCommand(Channel channel, Object command, ReplyCallback callback) {
+            this.channel = channel;
+            this.command = command;
+            this.callback = callback;
         }
     }
 
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2010 david varnes.
+ *
+ * Licensed under the Apache License, version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.freeswitch.esl.client.internal;
+
+import com.freeswitch.esl.client.EslClient;
+import com.freeswitch.esl.transport.event.EslEvent;
+import com.freeswitch.esl.transport.event.EslEventHeaderNames;
+import com.freeswitch.netty.util.Timeout;
+import com.freeswitch.netty.util.Timer;
+import com.freeswitch.netty.util.TimerTask;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End users of the {@link EslClient} should not need to use this class.
+ * <p>
+ * The background jobs awaiting their BACKGROUND_JOB event, by Job-UUID. A
+ * job is registered as its bgapi reply is handled, on the IO thread, which
+ * is always before its event is handled, and completed by a lookup when the
+ * event arrives. A job whose event has not arrived within the time to live
+ * is evicted and its future failed.
+ */
+public class BackgroundJobRegistry {
+    private final ConcurrentMap<String, Job> jobs = new ConcurrentHashMap<String, Job>();
+    private final Timer timer;
+    private volatile long timeToLiveMillis = TimeUnit.MINUTES.toMillis(10);
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * @param timer to evict the abandoned jobs on
+     */
+    public BackgroundJobRegistry(Timer timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * @param timeToLive time to wait for the event of a job
+     * @param unit       unit of the time to live
+     */
+    public void setTimeToLive(long timeToLive, TimeUnit unit) {
+        if (timeToLive < 1) {
+            throw new IllegalArgumentException("Time to live must be positive: " + timeToLive);
+        }
+        this.timeToLiveMillis = unit.toMillis(timeToLive);
+    }
+
+    /**
+     * Await the event of a job.
+     *
+     * @param jobUuid from the bgapi reply
+     * @return future of the BACKGROUND_JOB event
+     */
+    public CompletableFuture<EslEvent> register(final String jobUuid) {
+        final Job job = new Job();
+        jobs.put(jobUuid, job);
+        job.timeout = timer.newTimeout(new TimerTask() {
+            public void run(Timeout timeout) {
+                if (jobs.remove(jobUuid, job)) {
+                    evictionCount.incrementAndGet();
+                    job.result.completeExceptionally(
+                            new TimeoutException("No result for background job " + jobUuid + " within " + timeToLiveMillis + "ms"));
+                }
+            }
+        }, timeToLiveMillis, TimeUnit.MILLISECONDS);
+        return job.result;
+    }
+
+    /**
+     * Complete the job of a BACKGROUND_JOB event. The dependent stages of the
+     * job's future run on the calling thread unless added as async stages.
+     *
+     * @param event a BACKGROUND_JOB event
+     * @return true if a job was awaiting the event
+     */
+    public boolean complete(EslEvent event) {
+        String jobUuid = event.getEventHeaders().get(EslEventHeaderNames.JOB_UUID);
+        Job job = jobUuid == null ? null : jobs.remove(jobUuid);
+        if (job == null) {
+            return false;
+        }
+        job.cancelTimeout();
+        job.result.complete(event);
+        return true;
+    }
+
+    /**
+     * Fail every registered job, as when the connection they ran on is lost.
+     *
+     * @param cause of the failure
+     */
+    public void failAll(Throwable cause) {
+        List<Job> failed = new ArrayList<Job>(jobs.size());
+        for (String jobUuid : jobs.keySet()) {
+            Job job = jobs.remove(jobUuid);
+            if (job != null) {
+                failed.add(job);
+            }
+        }
+        for (Job job : failed) {
+            job.cancelTimeout();
+            job.result.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * @return the number of jobs awaiting their event
+     */
+    public int getPendingCount() {
+        return jobs.size();
+    }
+
+    /**
+     * @return the number of jobs evicted without their event
+     */
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    private static final class Job {
+        final CompletableFuture<EslEvent> result = new CompletableFuture<EslEvent>();
+        volatile Timeout timeout;
+
+        void cancelTimeout() {
+            // null if the event came before the eviction was scheduled
+            Timeout timeout = this.timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2010 david varnes.
+ *
+ * Licensed under the Apache License, version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.freeswitch.esl.client.internal;
+
+import com.freeswitch.esl.client.EslClient;
+import com.freeswitch.esl.client.EslEventSelector;
+import com.freeswitch.esl.client.IEslEventListener;
+import com.freeswitch.esl.transport.event.EslEvent;
+import com.freeswitch.esl.transport.event.EslEventHeaderNames;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * End users of the {@link EslClient} should not need to use this class.
+ * <p>
+ * Finds the listeners that selected an event, without looking at the
+ * listeners that did not. Listeners are indexed by event name, or event name
+ * and subclass, and below that by a trie of the header values they require,
+ * taken in header name order. Routing an event costs one lookup per
+ * subclass, and one per header value tested on the way down, instead of a
+ * call to every listener.
+ * <p>
+ * The index is rebuilt when listeners are added or removed, which is rare,
+ * and read without locking.
+ */
+public class EslEventRouter {
+    private final List<Registration> registrations = new ArrayList<Registration>();
+    private volatile Map<String, Node> index = Collections.emptyMap();
+
+    /**
+     * @param listener  to notify of the selected events
+     * @param selectors of the events the listener wants
+     */
+    public synchronized void addListener(IEslEventListener listener, EslEventSelector... selectors) {
+        for (EslEventSelector selector : selectors) {
+            registrations.add(new Registration(listener, selector));
+        }
+        rebuild();
+    }
+
+    /**
+     * @param listener to no longer notify
+     */
+    public synchronized void removeListener(IEslEventListener listener) {
+        for (int i = registrations.size() - 1; i >= 0; i--) {
+            if (registrations.get(i).listener == listener) {
+                registrations.remove(i);
+            }
+        }
+        rebuild();
+    }
+
+    public boolean isEmpty() {
+        return index.isEmpty();
+    }
+
+    private void rebuild() {
+        Map<String, Node> index = new HashMap<String, Node>();
+        for (Registration registration : registrations) {
+            EslEventSelector selector = registration.selector;
+            String key = selector.getSubclass() == null
+                    ? selector.getEventName() : selector.getEventName() + ' ' + selector.getSubclass();
+            Node node = index.get(key);
+            if (node == null) {
+                node = new Node();
+                index.put(key, node);
+            }
+            for (Map.Entry<String, String> header : selector.getHeaders().entrySet()) {
+                node = node.child(header.getKey(), header.getValue());
+            }
+            if (!node.listeners.contains(registration.listener)) {
+                node.listeners.add(registration.listener);
+            }
+        }
+        this.index = index;
+    }
+
+    /**
+     * @param event to route
+     * @return the listeners that selected the event, each once
+     */
+    public List<IEslEventListener> route(EslEvent event) {
+        Map<String, Node> index = this.index;
+        if (index.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<String, String> headers = event.getEventHeaders();
+        String eventName = headers.get(EslEventHeaderNames.EVENT_NAME);
+        List<IEslEventListener> listeners = new ArrayList<IEslEventListener>(4);
+        Node node = index.get(eventName);
+        if (node != null) {
+            node.collect(headers, listeners);
+        }
+        String subclass = headers.get(EslEventHeaderNames.EVENT_SUBCLASS);
+        if (subclass != null) {
+            node = index.get(eventName + ' ' + subclass);
+            if (node != null) {
+                node.collect(headers, listeners);
+            }
+        }
+        return listeners;
+    }
+
+    private static final class Node {
+        final List<IEslEventListener> listeners = new ArrayList<IEslEventListener>(1);
+        // header name, then header value
+        final Map<String, Map<String, Node>> children = new HashMap<String, Map<String, Node>>();
+
+        Node child(String header, String value) {
+            Map<String, Node> byValue = children.get(header);
+            if (byValue == null) {
+                byValue = new HashMap<String, Node>();
+                children.put(header, byValue);
+            }
+            Node child = byValue.get(value);
+            if (child == null) {
+                child = new Node();
+                byValue.put(value, child);
+            }
+            return child;
+        }
+
+        void collect(Map<String, String> headers, List<IEslEventListener> result) {
+            for (IEslEventListener listener : listeners) {
+                // a listener may select an event more than one way
+                if (!result.contains(listener)) {
+                    result.add(listener);
+                }
+            }
+            for (Map.Entry<String, Map<String, Node>> child : children.entrySet()) {
+                String value = headers.get(child.getKey());
+                if (value != null) {
+                    Node node = child.getValue().get(value);
+                    if (node != null) {
+                        node.collect(headers, result);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class Registration {
+        final IEslEventListener listener;
+        final EslEventSelector selector;
+
+        Registration(IEslEventListener listener, EslEventSelector selector) {
+            this.listener = listener;
+            this.selector = selector;
+        }
+    }
+}
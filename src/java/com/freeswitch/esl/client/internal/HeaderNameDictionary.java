@@ -0,0 +1,195 @@
+/*
+ * Copyright 2010 david varnes.
+ *
+ * Licensed under the Apache License, version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.freeswitch.esl.client.internal;
+
+import com.freeswitch.esl.transport.event.EslEventHeaderNames;
+import com.freeswitch.netty.buffer.ChannelBuffer;
+import com.freeswitch.netty.util.CharsetUtil;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Shared dictionary of canonical event header name strings.
+ * <p>
+ * Every event carries the same hundred or so header names, so rather than
+ * create a new key string per header per event the parser looks the name up
+ * here, straight from the characters or bytes of the header line, and gets
+ * back one instance shared by all events. Since most of these instances are
+ * the string literals in {@link EslEventHeaderNames} and the seed list below,
+ * a lookup with a literal key matches by identity.
+ * <p>
+ * The table is a fixed size open addressing array filled by compare-and-set,
+ * so it is lock free and bounded: once the probe sequence for a name is full
+ * the name is simply returned uninterned.
+ */
+public final class HeaderNameDictionary {
+    private static final int CAPACITY = 4096;
+    private static final int MASK = CAPACITY - 1;
+    private static final int MAX_PROBES = 8;
+
+    /**
+     * Header names of the standard FreeSWITCH events and channel variables.
+     */
+    private static final String[] SEEDS = {
+            EslEventHeaderNames.EVENT_NAME,
+            EslEventHeaderNames.EVENT_DATE_LOCAL,
+            EslEventHeaderNames.EVENT_DATE_GMT,
+            EslEventHeaderNames.EVENT_DATE_TIMESTAMP,
+            EslEventHeaderNames.EVENT_CALLING_FILE,
+            EslEventHeaderNames.EVENT_CALLING_FUNCTION,
+            EslEventHeaderNames.EVENT_CALLING_LINE_NUMBER,
+            EslEventHeaderNames.FREESWITCH_HOSTNAME,
+            EslEventHeaderNames.FREESWITCH_IPV4,
+            EslEventHeaderNames.FREESWITCH_IPV6,
+            EslEventHeaderNames.CORE_UUID,
+            EslEventHeaderNames.CONTENT_LENGTH,
+            EslEventHeaderNames.JOB_COMMAND,
+            EslEventHeaderNames.JOB_UUID,
+            "Event-Subclass", "Event-Sequence", "FreeSWITCH-Switchname", "Content-Type", "Reply-Text",
+            "Job-Command-Arg", "Job-Owner-UUID", "Unique-ID", "Call-Direction", "Presence-Call-Direction",
+            "Channel-State", "Channel-Call-State", "Channel-State-Number", "Channel-Name", "Channel-HIT-Dialplan",
+            "Channel-Presence-ID", "Channel-Call-UUID", "Channel-ANI", "Answer-State", "Hangup-Cause",
+            "Channel-Read-Codec-Name", "Channel-Read-Codec-Rate", "Channel-Read-Codec-Bit-Rate",
+            "Channel-Write-Codec-Name", "Channel-Write-Codec-Rate", "Channel-Write-Codec-Bit-Rate",
+            "Caller-Direction", "Caller-Logical-Direction", "Caller-Username", "Caller-Dialplan",
+            "Caller-Caller-ID-Name", "Caller-Caller-ID-Number", "Caller-Orig-Caller-ID-Name",
+            "Caller-Orig-Caller-ID-Number", "Caller-Callee-ID-Name", "Caller-Callee-ID-Number",
+            "Caller-Network-Addr", "Caller-ANI", "Caller-Destination-Number", "Caller-Unique-ID",
+            "Caller-Source", "Caller-Context", "Caller-Channel-Name", "Caller-Profile-Index",
+            "Caller-Profile-Created-Time", "Caller-Channel-Created-Time", "Caller-Channel-Answered-Time",
+            "Caller-Channel-Progress-Time", "Caller-Channel-Progress-Media-Time", "Caller-Channel-Hangup-Time",
+            "Caller-Channel-Transfer-Time", "Caller-Channel-Resurrect-Time", "Caller-Channel-Bridged-Time",
+            "Caller-Channel-Last-Hold", "Caller-Channel-Hold-Accum", "Caller-Screen-Bit",
+            "Caller-Privacy-Hide-Name", "Caller-Privacy-Hide-Number", "Other-Type", "Other-Leg-Direction",
+            "Other-Leg-Unique-ID", "Other-Leg-Caller-ID-Name", "Other-Leg-Caller-ID-Number",
+            "Other-Leg-Destination-Number", "Other-Leg-Channel-Name", "Bridge-A-Unique-ID", "Bridge-B-Unique-ID",
+            "Application", "Application-Data", "Application-Response", "Application-UUID", "DTMF-Digit",
+            "DTMF-Duration", "Unique-ID-Old", "variable_direction", "variable_uuid", "variable_session_id",
+            "variable_call_uuid", "variable_channel_name", "variable_sip_call_id", "variable_sip_from_user",
+            "variable_sip_from_host", "variable_sip_from_uri", "variable_sip_to_user", "variable_sip_to_host",
+            "variable_sip_to_uri", "variable_sip_req_user", "variable_sip_contact_user", "variable_sip_user_agent",
+            "variable_sip_network_ip", "variable_sip_network_port", "variable_sip_received_ip",
+            "variable_sip_received_port", "variable_sip_via_protocol", "variable_sip_profile_name",
+            "variable_sofia_profile_name", "variable_recovery_profile_name", "variable_caller_id_name",
+            "variable_caller_id_number", "variable_callee_id_name", "variable_callee_id_number",
+            "variable_effective_caller_id_name", "variable_effective_caller_id_number",
+            "variable_destination_number", "variable_dialed_user", "variable_dialed_domain", "variable_domain_name",
+            "variable_user_context", "variable_accountcode", "variable_endpoint_disposition",
+            "variable_hangup_cause", "variable_hangup_cause_q850", "variable_originate_disposition",
+            "variable_bridge_uuid", "variable_signal_bond", "variable_read_codec", "variable_read_rate",
+            "variable_write_codec", "variable_write_rate", "variable_current_application",
+            "variable_current_application_data", "variable_start_stamp", "variable_answer_stamp",
+            "variable_end_stamp", "variable_start_epoch", "variable_answer_epoch", "variable_end_epoch",
+            "variable_duration", "variable_billsec", "variable_answersec", "variable_waitsec",
+            "variable_progresssec", "variable_mduration", "variable_billmsec", "variable_flow_billsec",
+    };
+
+    private static final AtomicReferenceArray<String> names = new AtomicReferenceArray<String>(CAPACITY);
+
+    static {
+        for (String seed : SEEDS) {
+            intern(seed, 0, seed.length());
+        }
+    }
+
+    private HeaderNameDictionary() {
+        /* static class */
+    }
+
+    /**
+     * Look up the header name found in part of a header line.
+     *
+     * @param line  the header line
+     * @param start index of the first character of the name
+     * @param end   index just after the last character of the name
+     * @return the canonical instance of the name
+     */
+    public static String intern(String line, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + line.charAt(i);
+        }
+        int slot = spread(hash);
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            String name = names.get(slot);
+            if (name == null) {
+                String candidate = line.substring(start, end);
+                if (names.compareAndSet(slot, null, candidate)) {
+                    return candidate;
+                }
+                name = names.get(slot);
+            }
+            if (name.length() == end - start && line.regionMatches(start, name, 0, name.length())) {
+                return name;
+            }
+            slot = (slot + 1) & MASK;
+        }
+        return line.substring(start, end);
+    }
+
+    /**
+     * Look up the header name found in part of a received frame, without
+     * creating a string unless the name has not been seen before.
+     *
+     * @param buffer the frame
+     * @param start  index of the first byte of the name
+     * @param end    index just after the last byte of the name
+     * @return the canonical instance of the name
+     */
+    public static String intern(ChannelBuffer buffer, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            byte b = buffer.getByte(i);
+            if (b < 0) {
+                // header names are ASCII, leave anything else alone
+                return buffer.toString(start, end - start, CharsetUtil.UTF_8);
+            }
+            hash = 31 * hash + b;
+        }
+        int slot = spread(hash);
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            String name = names.get(slot);
+            if (name == null) {
+                String candidate = buffer.toString(start, end - start, CharsetUtil.US_ASCII);
+                if (names.compareAndSet(slot, null, candidate)) {
+                    return candidate;
+                }
+                name = names.get(slot);
+            }
+            if (matches(name, buffer, start, end)) {
+                return name;
+            }
+            slot = (slot + 1) & MASK;
+        }
+        return buffer.toString(start, end - start, CharsetUtil.US_ASCII);
+    }
+
+    private static boolean matches(String name, ChannelBuffer buffer, int start, int end) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = start; i < end; i++) {
+            if (name.charAt(i - start) != buffer.getByte(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int spread(int hash) {
+        return (hash ^ hash >>> 16) & MASK;
+    }
+}
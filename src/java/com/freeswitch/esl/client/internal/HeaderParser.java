@@ -15,6 +15,7 @@
  */
 package com.freeswitch.esl.client.internal;
 
+import com.freeswitch.netty.buffer.ChannelBuffer;
 import com.freeswitch.netty.handler.codec.http.HttpMessageDecoder;
 
 /**
@@ -42,6 +43,22 @@ public class HeaderParser {
      * @return a String[] array with header name at 0 and header value at 1
      */
     public static String[] splitHeader(String sb) {
+        return splitHeader(sb, false);
+    }
+
+    /**
+     * As {@link #splitHeader(String)}, but the header name is the canonical
+     * instance from {@link HeaderNameDictionary}. Used for event headers, whose
+     * names repeat in every event.
+     *
+     * @param sb the string header to parse
+     * @return a String[] array with header name at 0 and header value at 1
+     */
+    public static String[] splitEventHeader(String sb) {
+        return splitHeader(sb, true);
+    }
+
+    private static String[] splitHeader(String sb, boolean internName) {
         final int length = sb.length();
         int nameStart;
         int nameEnd;
@@ -64,13 +81,14 @@ public class HeaderParser {
             }
         }
 
+        String name = internName ? HeaderNameDictionary.intern(sb, nameStart, nameEnd) : sb.substring(nameStart, nameEnd);
         valueStart = findNonWhitespace(sb, colonEnd);
         if (valueStart == length) {
-            return new String[]{sb.substring(nameStart, nameEnd), ""};
+            return new String[]{name, ""};
         }
 
         valueEnd = findEndOfString(sb);
-        return new String[]{sb.substring(nameStart, nameEnd), sb.substring(valueStart, valueEnd)};
+        return new String[]{name, sb.substring(valueStart, valueEnd)};
     }
 
     private static int findNonWhitespace(String sb, int offset) {
@@ -92,4 +110,81 @@ public class HeaderParser {
         }
         return result;
     }
+
+    /**
+     * Byte oriented counterpart of the name scan in {@link #splitHeader(String)}.
+     *
+     * @param buffer    the frame
+     * @param nameStart index of the first byte of the header name
+     * @param to        index of the line feed ending the header line
+     * @return index just after the last byte of the header name
+     */
+    public static int findNameEnd(ChannelBuffer buffer, int nameStart, int to) {
+        int result;
+        for (result = nameStart; result < to; result++) {
+            byte b = buffer.getByte(result);
+            if (b == ':' || isWhitespace(b)) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Byte oriented counterpart of the value scan in {@link #splitHeader(String)}.
+     *
+     * @param buffer  the frame
+     * @param nameEnd index just after the last byte of the header name
+     * @param to      index of the line feed ending the header line
+     * @return index of the first byte of the header value, or {@code to}
+     */
+    public static int findValueStart(ChannelBuffer buffer, int nameEnd, int to) {
+        int colon = buffer.indexOf(nameEnd, to, (byte) ':');
+        return findNonWhitespace(buffer, colon < 0 ? to : colon + 1, to);
+    }
+
+    /**
+     * Byte oriented counterpart of the whitespace scan used by
+     * {@link #splitHeader(String)}, for parsing straight from a received frame.
+     *
+     * @param buffer the frame
+     * @param from   first index to examine
+     * @param to     index just after the last byte to examine
+     * @return index of the first non whitespace byte, or {@code to}
+     */
+    public static int findNonWhitespace(ChannelBuffer buffer, int from, int to) {
+        int result;
+        for (result = from; result < to; result++) {
+            if (!isWhitespace(buffer.getByte(result))) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Byte oriented counterpart of the trailing whitespace trim used by
+     * {@link #splitHeader(String)}.
+     *
+     * @param buffer the frame
+     * @param from   first index of the string
+     * @param to     index just after the last byte of the string
+     * @return index just after the last non whitespace byte, or {@code from}
+     */
+    public static int findEndOfString(ChannelBuffer buffer, int from, int to) {
+        int result;
+        for (result = to; result > from; result--) {
+            if (!isWhitespace(buffer.getByte(result - 1))) {
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return true if the byte would be whitespace to {@link #splitHeader(String)}
+     */
+    public static boolean isWhitespace(byte b) {
+        return Character.isWhitespace((char) (b & 0xFF));
+    }
 }
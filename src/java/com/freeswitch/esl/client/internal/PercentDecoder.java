@@ -0,0 +1,249 @@
+/*
+ * Copyright 2010 david varnes.
+ *
+ * Licensed under the Apache License, version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.freeswitch.esl.client.internal;
+
+import com.freeswitch.netty.buffer.ChannelBuffer;
+import com.freeswitch.netty.util.CharsetUtil;
+
+import java.net.URLDecoder;
+
+/**
+ * A replacement for {@link URLDecoder#decode(String, String)} specialised for
+ * ESL event header values, which FreeSWITCH percent encodes as UTF-8.
+ * <p>
+ * {@code '+'} becomes a space and each run of {@code %XX} escapes is decoded
+ * as UTF-8 straight into a char buffer that is reused by the calling thread,
+ * so the only allocation is the resulting string. A value with nothing to
+ * decode is returned as is. Malformed UTF-8 becomes {@code U+FFFD}, as with
+ * {@link URLDecoder}; an invalid escape throws
+ * {@link IllegalArgumentException}.
+ */
+public final class PercentDecoder {
+    private static final int INITIAL_CAPACITY = 256;
+    private static final int MAX_RETAINED_CAPACITY = 16384;
+    private static final char REPLACEMENT = '\uFFFD';
+
+    private static final ThreadLocal<PercentDecoder> decoders = new ThreadLocal<PercentDecoder>() {
+        @Override
+        protected PercentDecoder initialValue() {
+            return new PercentDecoder();
+        }
+    };
+
+    private char[] chars = new char[INITIAL_CAPACITY];
+    private int length;
+    /*
+     * UTF-8 sequence in progress
+     */
+    private int codePoint;
+    private int pending;
+    private int lower;
+    private int upper;
+
+    private PercentDecoder() {
+    }
+
+    /**
+     * @param value raw header value
+     * @return true if the value contains a {@code '%'} or a {@code '+'}
+     */
+    public static boolean needsDecoding(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '%' || c == '+') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Decode a raw header value.
+     *
+     * @param value raw header value
+     * @return the decoded value, or the same instance if nothing needed decoding
+     */
+    public static String decode(String value) {
+        if (!needsDecoding(value)) {
+            return value;
+        }
+        return decoders.get().decodeChars(value);
+    }
+
+    /**
+     * Decode a raw header value straight from the bytes of a received frame.
+     *
+     * @param buffer the frame
+     * @param index  first byte of the value
+     * @param length number of bytes in the value
+     * @return the decoded value
+     */
+    public static String decode(ChannelBuffer buffer, int index, int length) {
+        final int end = index + length;
+        for (int i = index; i < end; i++) {
+            byte b = buffer.getByte(i);
+            if (b == '%' || b == '+') {
+                return decoders.get().decodeBytes(buffer, index, end);
+            }
+        }
+        return buffer.toString(index, length, CharsetUtil.UTF_8);
+    }
+
+    private String decodeChars(String value) {
+        final int end = value.length();
+        reset(end);
+        for (int i = 0; i < end; i++) {
+            char c = value.charAt(i);
+            if (c == '%') {
+                utf8(hexByte(value, i));
+                i += 2;
+            } else {
+                append(c == '+' ? ' ' : c);
+            }
+        }
+        return result();
+    }
+
+    private String decodeBytes(ChannelBuffer buffer, int index, int end) {
+        reset(end - index);
+        for (int i = index; i < end; i++) {
+            int b = buffer.getByte(i) & 0xFF;
+            if (b == '%') {
+                if (i + 2 >= end) {
+                    throw new IllegalArgumentException("Incomplete trailing escape (%) pattern");
+                }
+                utf8(hex(buffer.getByte(i + 1)) << 4 | hex(buffer.getByte(i + 2)));
+                i += 2;
+            } else if (b == '+') {
+                append(' ');
+            } else {
+                // raw bytes are UTF-8 too
+                utf8(b);
+            }
+        }
+        return result();
+    }
+
+    private static int hexByte(String value, int index) {
+        if (index + 2 >= value.length()) {
+            throw new IllegalArgumentException("Incomplete trailing escape (%) pattern");
+        }
+        return hex(value.charAt(index + 1)) << 4 | hex(value.charAt(index + 2));
+    }
+
+    private static int hex(int c) {
+        if (c >= '0' && c <= '9') {
+            return c - '0';
+        }
+        if (c >= 'a' && c <= 'f') {
+            return c - 'a' + 10;
+        }
+        if (c >= 'A' && c <= 'F') {
+            return c - 'A' + 10;
+        }
+        throw new IllegalArgumentException("Illegal hex characters in escape (%) pattern: " + (char) c);
+    }
+
+    private void reset(int capacity) {
+        if (chars.length < capacity) {
+            chars = new char[Math.max(capacity, chars.length * 2)];
+        }
+        length = 0;
+        pending = 0;
+    }
+
+    private String result() {
+        if (pending > 0) {
+            pending = 0;
+            put(REPLACEMENT);
+        }
+        String result = new String(chars, 0, length);
+        if (chars.length > MAX_RETAINED_CAPACITY) {
+            chars = new char[INITIAL_CAPACITY];
+        }
+        return result;
+    }
+
+    private void append(char c) {
+        if (pending > 0) {
+            // a sequence cut short by a plain character
+            pending = 0;
+            put(REPLACEMENT);
+        }
+        put(c);
+    }
+
+    private void utf8(int b) {
+        if (pending > 0) {
+            if (b >= lower && b <= upper) {
+                codePoint = codePoint << 6 | b & 0x3F;
+                lower = 0x80;
+                upper = 0xBF;
+                if (--pending == 0) {
+                    putCodePoint();
+                }
+                return;
+            }
+            // ill-formed, start over with this byte as a lead byte
+            pending = 0;
+            put(REPLACEMENT);
+        }
+        lower = 0x80;
+        upper = 0xBF;
+        if (b < 0x80) {
+            put((char) b);
+        } else if (b >= 0xC2 && b < 0xE0) {
+            codePoint = b & 0x1F;
+            pending = 1;
+        } else if (b >= 0xE0 && b < 0xF0) {
+            codePoint = b & 0x0F;
+            pending = 2;
+            // no overlong forms
+            if (b == 0xE0) {
+                lower = 0xA0;
+            }
+        } else if (b >= 0xF0 && b <= 0xF4) {
+            codePoint = b & 0x07;
+            pending = 3;
+            // no overlong forms and nothing past U+10FFFF
+            if (b == 0xF0) {
+                lower = 0x90;
+            } else if (b == 0xF4) {
+                upper = 0x8F;
+            }
+        } else {
+            put(REPLACEMENT);
+        }
+    }
+
+    private void putCodePoint() {
+        int cp = codePoint;
+        if (cp >= Character.MIN_SURROGATE && cp <= Character.MAX_SURROGATE) {
+            // an encoded surrogate is malformed as a whole
+            put(REPLACEMENT);
+        } else if (cp < Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+            put((char) cp);
+        } else {
+            put(Character.highSurrogate(cp));
+            put(Character.lowSurrogate(cp));
+        }
+    }
+
+    private void put(char c) {
+        // never more chars than input bytes, the buffer was sized in reset()
+        chars[length++] = c;
+    }
+}
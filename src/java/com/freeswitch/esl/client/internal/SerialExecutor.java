@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010 david varnes.
+ *
+ * Licensed under the Apache License, version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.freeswitch.esl.client.internal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An {@link Executor} that runs its tasks one at a time, in the order they
+ * were submitted, on the threads of a shared executor. Many serial executors
+ * can share one pool while each keeps its own tasks in order, as a single
+ * thread executor would.
+ * <p>
+ * A detachable serial executor lets a task that is about to block, see
+ * {@link #detachCurrent()}, give up its place: the tasks behind it go on
+ * running in order on another thread, while the rest of the blocked task
+ * runs outside that order.
+ */
+public final class SerialExecutor implements Executor {
+    // the detachable serial executor whose tasks this thread is running
+    private static final ThreadLocal<SerialExecutor> current = new ThreadLocal<SerialExecutor>();
+
+    private final Logger log = LoggerFactory.getLogger(this.getClass());
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private final Executor executor;
+    private final boolean detachable;
+    private final Runnable drain = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    public SerialExecutor(Executor executor) {
+        this(executor, false);
+    }
+
+    /**
+     * @param executor   to run the tasks on
+     * @param detachable whether a task may detach, see
+     *                   {@link #detachCurrent()}
+     */
+    public SerialExecutor(Executor executor, boolean detachable) {
+        this.executor = executor;
+        this.detachable = detachable;
+    }
+
+    /**
+     * Called by a task of a detachable serial executor before it blocks, so
+     * that the tasks behind it, which it may be waiting for, run on another
+     * thread meanwhile. Does nothing on any other thread.
+     */
+    public static void detachCurrent() {
+        SerialExecutor serial = current.get();
+        if (serial != null) {
+            // the drain loop of this thread stops after the task
+            current.remove();
+            serial.running.set(false);
+            if (!serial.tasks.isEmpty() && serial.running.compareAndSet(false, true)) {
+                serial.executor.execute(serial.drain);
+            }
+        }
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+        if (running.compareAndSet(false, true)) {
+            executor.execute(drain);
+        }
+    }
+
+    private void drain() {
+        if (detachable) {
+            current.set(this);
+        }
+        try {
+            for (; ; ) {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    try {
+                        task.run();
+                    } catch (Throwable t) {
+                        log.error("Task failed", t);
+                    }
+                    if (detachable && current.get() != this) {
+                        // detached, another thread has taken over
+                        return;
+                    }
+                }
+                running.set(false);
+                // a task added after the queue was seen empty must not be stranded
+                if (tasks.isEmpty() || !running.compareAndSet(false, true)) {
+                    return;
+                }
+            }
+        } finally {
+            if (detachable) {
+                current.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2010 david varnes.
+ *
+ * Licensed under the Apache License, version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.freeswitch.esl.client.internal;
+
+import com.freeswitch.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executors running their tasks on virtual threads, on a JDK that has them
+ * (21 or later). They are looked up by reflection, so that the library still
+ * builds and runs on Java 8, where {@link #isSupported()} is false.
+ * <p>
+ * A virtual thread waiting for a command reply with
+ * {@link AbstractEslClientHandler#await(java.util.concurrent.Future)} is
+ * parked without holding a monitor, so it frees its carrier thread for other
+ * sessions to make progress.
+ */
+public final class VirtualThreads {
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method FACTORY;
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+
+    static {
+        Method ofVirtual = null, name = null, factory = null, newThreadPerTaskExecutor = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            name = builder.getMethod("name", String.class, long.class);
+            factory = builder.getMethod("factory");
+            newThreadPerTaskExecutor = Class.forName("java.util.concurrent.Executors")
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch (Exception e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        FACTORY = factory;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if this JDK has virtual threads
+     */
+    public static boolean isSupported() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @param prefix of the thread names, followed by a number
+     * @return a factory of virtual threads
+     * @throws IllegalStateException if this JDK has no virtual threads
+     */
+    public static ThreadFactory newThreadFactory(String prefix) {
+        if (!isSupported()) {
+            throw new IllegalStateException("Virtual threads need Java 21 or later, running "
+                    + System.getProperty("java.version"));
+        }
+        try {
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), prefix, 1L);
+            return (ThreadFactory) FACTORY.invoke(builder);
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not create a virtual thread factory", e);
+        }
+    }
+
+    /**
+     * @param prefix of the thread names
+     * @return an executor starting a virtual thread for each task
+     * @throws IllegalStateException if this JDK has no virtual threads
+     */
+    public static ExecutorService newExecutor(String prefix) {
+        ThreadFactory threadFactory = newThreadFactory(prefix);
+        try {
+            return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, threadFactory);
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not create a virtual thread executor", e);
+        }
+    }
+
+    /**
+     * Create an executor for the ESL pipelines that handles the messages of
+     * each connection in order, as the default one does, on a virtual thread
+     * per connection with messages to handle. A handler blocked on a command
+     * reply then holds up only its own connection, however many there are.
+     * <p>
+     * Each connection is limited to 1 MiB of queued messages. There is no
+     * limit on the total, as waiting for room would pin the carrier thread.
+     *
+     * @param prefix     of the thread names
+     * @param maxThreads the most virtual threads alive at once, so the most
+     *                   connections that can be handled at the same time;
+     *                   a thread idle for 10 seconds ends
+     * @return the executor
+     * @throws IllegalStateException if this JDK has no virtual threads
+     */
+    public static OrderedMemoryAwareThreadPoolExecutor newOrderedExecutor(String prefix, int maxThreads) {
+        return new OrderedMemoryAwareThreadPoolExecutor(maxThreads, 1048576, 0,
+                10, TimeUnit.SECONDS, newThreadFactory(prefix));
+    }
+}
@@ -14,10 +14,9 @@ package com.freeswitch.esl.client.internal.debug;
  * License for the specific language governing permissions and limitations
  * under the License.
  */
-
 import com.freeswitch.netty.channel.ChannelEvent;
 import com.freeswitch.netty.channel.ChannelHandlerContext;
-import com.freeswitch.netty.util.EstimatableObjectWrapper;
+import com.freeswitch.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,46 +26,32 @@ import java.util.concurrent.Executor;
  * a {@link Runnable} which sends the specified {@link ChannelEvent} upstream.
  * Most users will not see this type at all because it is used by
  * {@link Executor} implementors only
+ * <p>
+ * Extends the netty {@link com.freeswitch.netty.handler.execution.ChannelEventRunnable}
+ * so that an {@link OrderedMemoryAwareThreadPoolExecutor} keeps the events of
+ * a channel in order.
  *
  * @author The Netty Project (netty-dev@lists.jboss.org)
  * @author Trustin Lee (tlee@redhat.com)
  * @version $Rev: 1685 $, $Date: 2009-08-28 16:15:49 +0900 (금, 28 8 2009) $
  */
-public class ChannelEventRunnable implements Runnable, EstimatableObjectWrapper {
+public class ChannelEventRunnable extends com.freeswitch.netty.handler.execution.ChannelEventRunnable {
 
     private final Logger log = LoggerFactory.getLogger(this.getClass());
-    private final ChannelHandlerContext ctx;
-    private final ChannelEvent e;
-    volatile int estimatedSize;
 
     /**
      * Creates a {@link Runnable} which sends the specified {@link ChannelEvent}
      * upstream via the specified {@link ChannelHandlerContext}.
      */
-    public ChannelEventRunnable(ChannelHandlerContext ctx, ChannelEvent e) {
-        this.ctx = ctx;
-        this.e = e;
-    }
-
-    /**
-     * Returns the {@link ChannelHandlerContext} which will be used to send the
-     * {@link ChannelEvent} upstream.
-     */
-    public ChannelHandlerContext getContext() {
-        return ctx;
-    }
-
-    /**
-     * Returns the {@link ChannelEvent} which will be sent upstream.
-     */
-    public ChannelEvent getEvent() {
-        return e;
+    public ChannelEventRunnable(ChannelHandlerContext ctx, ChannelEvent e, Executor executor) {
+        super(ctx, e, executor);
     }
 
     /**
      * Sends the event upstream.
      */
-    public void run() {
+    @Override
+    protected void doRun() {
         // log.info( "Sending [{}] upstream in [{}]", e, ctx );
         try {
             ctx.sendUpstream(e);
@@ -74,8 +59,4 @@ public class ChannelEventRunnable implements Runnable, EstimatableObjectWrapper
             log.error("Caught -->", t);
         }
     }
-
-    public Object unwrap() {
-        return e;
-    }
 }
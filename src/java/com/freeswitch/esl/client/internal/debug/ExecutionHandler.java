@@ -16,6 +16,9 @@ package com.freeswitch.esl.client.internal.debug;
  * under the License.
  */
 
+import com.freeswitch.esl.transport.message.EslHeaders.Name;
+import com.freeswitch.esl.transport.message.EslHeaders.Value;
+import com.freeswitch.esl.transport.message.EslMessage;
 import com.freeswitch.netty.channel.*;
 import com.freeswitch.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 import com.freeswitch.netty.util.ExternalResourceReleasable;
@@ -45,6 +48,13 @@ import java.util.concurrent.Executor;
  * to utilize more processors to handle {@link ChannelEvent}s. You can also use
  * other {@link Executor} implementation than the recommended
  * {@link OrderedMemoryAwareThreadPoolExecutor}.
+ * <p>
+ * Command replies ({@code api/response} and {@code command/reply}) are not
+ * handed to the {@link Executor} but sent upstream in the IO thread. They
+ * are matched to the commands waiting on them in the order they were
+ * received, and never queue behind a handler that is itself blocked waiting
+ * for a reply. The handler completes the futures of those commands on its
+ * reply executor, not on the IO thread.
  *
  * @author The Netty Project (netty-dev@lists.jboss.org)
  * @author Trustin Lee (tlee@redhat.com)
@@ -83,7 +93,20 @@ public class ExecutionHandler implements ChannelUpstreamHandler, ChannelDownstre
     }
 
     public void handleUpstream(ChannelHandlerContext context, ChannelEvent e) throws Exception {
-        executor.execute(new ChannelEventRunnable(context, e));
+        if (isCommandReply(e)) {
+            context.sendUpstream(e);
+        } else {
+            executor.execute(new ChannelEventRunnable(context, e, executor));
+        }
+    }
+
+    private static boolean isCommandReply(ChannelEvent e) {
+        if (e instanceof MessageEvent && ((MessageEvent) e).getMessage() instanceof EslMessage) {
+            EslMessage message = (EslMessage) ((MessageEvent) e).getMessage();
+            return message.hasHeaderValue(Name.CONTENT_TYPE, Value.API_RESPONSE)
+                    || message.hasHeaderValue(Name.CONTENT_TYPE, Value.COMMAND_REPLY);
+        }
+        return false;
     }
 
     public void handleDownstream(ChannelHandlerContext ctx, ChannelEvent e) throws Exception {
@@ -1,25 +1,57 @@
 package com.freeswitch.esl.server;
 
 import com.freeswitch.esl.client.internal.debug.ExecutionHandler;
+import com.freeswitch.esl.transport.message.EslCommandEncoder;
 import com.freeswitch.esl.transport.message.EslFrameDecoder;
+import com.freeswitch.esl.transport.message.EslWriteCoalescer;
 import com.freeswitch.netty.channel.ChannelPipeline;
 import com.freeswitch.netty.channel.ChannelPipelineFactory;
 import com.freeswitch.netty.channel.Channels;
-import com.freeswitch.netty.handler.codec.string.StringEncoder;
 import com.freeswitch.netty.handler.execution.OrderedMemoryAwareThreadPoolExecutor;
 
+import java.util.concurrent.Executor;
+
 
 public abstract class AbstractEslServerPipelineFactory implements ChannelPipelineFactory {
+    private final Executor executor;
+
+    /**
+     * Each connection gets its own executor of 16 threads.
+     */
+    protected AbstractEslServerPipelineFactory() {
+        this(null);
+    }
+
+    /**
+     * All connections share the given executor, which must handle the
+     * messages of each connection in order, such as an
+     * {@link OrderedMemoryAwareThreadPoolExecutor}. The outbound sessions
+     * block on command replies, so to serve many at once use one on virtual
+     * threads:
+     * <pre>
+     *   super(VirtualThreads.newOrderedExecutor("EslServerHandler-", 65536));
+     * </pre>
+     * The executor is not shut down by the server.
+     *
+     * @param executor for the pipelines, or null for one per connection
+     */
+    protected AbstractEslServerPipelineFactory(Executor executor) {
+        this.executor = executor;
+    }
+
     public ChannelPipeline getPipeline() throws Exception {
         ChannelPipeline pipeline = Channels.pipeline();
+        // Batch the encoded commands into as few socket writes as possible
+        pipeline.addLast("coalescer", new EslWriteCoalescer());
         // Add the text line codec combination first
-        pipeline.addLast("encoder", new StringEncoder());
+        pipeline.addLast("encoder", new EslCommandEncoder());
         // Note that server mode requires the decoder to treat many 'headers'
         // as body lines
         pipeline.addLast("decoder", new EslFrameDecoder(8092, true));
         // Add an executor to ensure separate thread for each upstream message
         // from here
-        pipeline.addLast("executor", new ExecutionHandler(new OrderedMemoryAwareThreadPoolExecutor(16, 1048576, 1048576)));
+        pipeline.addLast("executor", new ExecutionHandler(executor != null ? executor
+                : new OrderedMemoryAwareThreadPoolExecutor(16, 1048576, 1048576)));
 
         // now the server client logic
         pipeline.addLast("EslServerHandler", makeHandler());
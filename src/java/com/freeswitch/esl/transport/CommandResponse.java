@@ -25,12 +25,24 @@ import com.freeswitch.esl.transport.message.EslMessage;
  * @author david varnes
  */
 public class CommandResponse {
-    private final String command;
+    private final Object command;
     private final String replyText;
     private final EslMessage response;
     private final boolean success;
 
     public CommandResponse(String command, EslMessage response) {
+        this((Object) command, response);
+    }
+
+    /**
+     * @param command  the command sent, its text is only built if asked for
+     * @param response the response from the server
+     */
+    public CommandResponse(EslCommand command, EslMessage response) {
+        this((Object) command, response);
+    }
+
+    private CommandResponse(Object command, EslMessage response) {
         this.command = command;
         this.response = response;
         this.replyText = response.getHeaderValue(Name.REPLY_TEXT);
@@ -41,7 +53,7 @@ public class CommandResponse {
      * @return the original command sent to the server
      */
     public String getCommand() {
-        return command;
+        return command.toString();
     }
 
     /**
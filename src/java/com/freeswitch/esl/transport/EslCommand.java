@@ -0,0 +1,75 @@
+/*
+ * Copyright 2010 david varnes.
+ *
+ * Licensed under the Apache License, version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.freeswitch.esl.transport;
+
+/**
+ * A single line command to send to FreeSWITCH, such as
+ * <pre>
+ *   api status
+ *   bgapi originate sofia/default/1000 &amp;park
+ *   filter Event-Name CHANNEL_ANSWER
+ * </pre>
+ * The words of the command are kept as they were given and are only written
+ * out, space separated, by the encoder in the IO pipeline. Null or empty words
+ * are left out.
+ *
+ * @see SendMsg for the multi line 'sendmsg' command
+ */
+public class EslCommand {
+    private final String[] words;
+
+    /**
+     * @param words of the command line, for example "api", "status"
+     */
+    public EslCommand(String... words) {
+        this.words = words;
+    }
+
+    /**
+     * @return the number of words of this command, including null or empty
+     * words that will not be sent
+     */
+    public int getWordCount() {
+        return words.length;
+    }
+
+    /**
+     * @param index of the word
+     * @return the word, may be null or empty
+     */
+    public String getWord(int index) {
+        return words[index];
+    }
+
+    /**
+     * @return the command line as it will be sent, without the terminating
+     * blank line
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (String word : words) {
+            if (word != null && !word.isEmpty()) {
+                if (sb.length() > 0) {
+                    sb.append(' ');
+                }
+                sb.append(word);
+            }
+        }
+
+        return sb.toString();
+    }
+}
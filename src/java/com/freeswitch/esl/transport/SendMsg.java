@@ -22,16 +22,16 @@ import java.util.List;
  * @author david varnes
  */
 public class SendMsg {
-    private final List<String> msgLines = new ArrayList<String>();
-    private final boolean hasUuid;
+    private final String uuid;
+    private final List<String> names = new ArrayList<String>();
+    private final List<String> values = new ArrayList<String>();
 
     /**
      * Constructor for use with server socket client only. This client mode
      * does not need a call UUID for context.
      */
     public SendMsg() {
-        msgLines.add("sendmsg");
-        hasUuid = false;
+        uuid = null;
     }
 
     /**
@@ -41,8 +41,7 @@ public class SendMsg {
      *             operated on).
      */
     public SendMsg(String uuid) {
-        msgLines.add("sendmsg " + uuid);
-        hasUuid = true;
+        this.uuid = uuid;
     }
 
     /**
@@ -55,7 +54,7 @@ public class SendMsg {
      * @param command the string command [ execute | hangup ]
      */
     public void addCallCommand(String command) {
-        msgLines.add("call-command: " + command);
+        addLine("call-command", command);
     }
 
     /**
@@ -68,7 +67,7 @@ public class SendMsg {
      * @param appName the string app name to execute
      */
     public void addExecuteAppName(String appName) {
-        msgLines.add("execute-app-name: " + appName);
+        addLine("execute-app-name", appName);
     }
 
     /**
@@ -81,7 +80,7 @@ public class SendMsg {
      * @param arg the string arg
      */
     public void addExecuteAppArg(String arg) {
-        msgLines.add("execute-app-arg: " + arg);
+        addLine("execute-app-arg", arg);
     }
 
     /**
@@ -94,7 +93,7 @@ public class SendMsg {
      * @param count the int number of times to loop
      */
     public void addLoops(int count) {
-        msgLines.add("loops: " + count);
+        addLine("loops", Integer.toString(count));
     }
 
     /**
@@ -107,7 +106,7 @@ public class SendMsg {
      * @param cause the string cause
      */
     public void addHangupCause(String cause) {
-        msgLines.add("hangup-cause: " + cause);
+        addLine("hangup-cause", cause);
     }
 
     /**
@@ -120,7 +119,7 @@ public class SendMsg {
      * @param value the string value part of the line
      */
     public void addNomediaUuid(String value) {
-        msgLines.add("nomedia-uuid: " + value);
+        addLine("nomedia-uuid", value);
     }
 
     /**
@@ -131,7 +130,7 @@ public class SendMsg {
      * </pre>
      */
     public void addEventLock() {
-        msgLines.add("event-lock: true");
+        addLine("event-lock", "true");
     }
 
     /**
@@ -146,15 +145,23 @@ public class SendMsg {
      * @param value part of line
      */
     public void addGenericLine(String name, String value) {
-        msgLines.add(name + ": " + value);
+        addLine(name, value);
     }
 
     /**
      * The list of strings that make up the message to send to FreeSWITCH.
+     * <p>
+     * The encoder in the IO pipeline writes the message from its parts
+     * directly, this list is built on each call.
      *
      * @return list of strings, as they were added to this message.
      */
     public List<String> getMsgLines() {
+        List<String> msgLines = new ArrayList<String>(names.size() + 1);
+        msgLines.add(hasUuid() ? "sendmsg " + uuid : "sendmsg");
+        for (int i = 0; i < names.size(); i++) {
+            msgLines.add(names.get(i) + ": " + values.get(i));
+        }
         return msgLines;
     }
 
@@ -164,15 +171,50 @@ public class SendMsg {
      * @return true if constructed with a UUID.
      */
     public boolean hasUuid() {
-        return hasUuid;
+        return uuid != null;
+    }
+
+    /**
+     * @return the call UUID the message was constructed with, or null
+     */
+    public String getUuid() {
+        return uuid;
+    }
+
+    /**
+     * @return the number of 'name: value' lines added to this message
+     */
+    public int getLineCount() {
+        return names.size();
+    }
+
+    /**
+     * @param index of the line, in the order added
+     * @return the name part of the line
+     */
+    public String getLineName(int index) {
+        return names.get(index);
+    }
+
+    /**
+     * @param index of the line, in the order added
+     * @return the value part of the line
+     */
+    public String getLineValue(int index) {
+        return values.get(index);
+    }
+
+    private void addLine(String name, String value) {
+        names.add(name);
+        values.add(value);
     }
 
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder("SendMsg: ");
-        if (msgLines.size() > 1) {
-            sb.append(msgLines.get(1));
-        } else if (msgLines.size() > 0) {
+        if (names.size() > 0) {
+            sb.append(names.get(0)).append(": ").append(values.get(0));
+        } else {
             sb.append(0);
         }
 
@@ -15,18 +15,20 @@
  */
 package com.freeswitch.esl.transport.event;
 
+import com.freeswitch.esl.client.internal.HeaderNameDictionary;
 import com.freeswitch.esl.client.internal.HeaderParser;
 import com.freeswitch.esl.transport.message.EslHeaders;
 import com.freeswitch.esl.transport.message.EslHeaders.Name;
 import com.freeswitch.esl.transport.message.EslHeaders.Value;
+import com.freeswitch.esl.transport.message.EslFrameDecoder;
 import com.freeswitch.esl.transport.message.EslMessage;
+import com.freeswitch.netty.buffer.ChannelBuffer;
+import com.freeswitch.netty.buffer.ChannelBuffers;
+import com.freeswitch.netty.util.CharsetUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.UnsupportedEncodingException;
-import java.net.URLDecoder;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -54,8 +56,10 @@ import java.util.Map;
 public class EslEvent {
     private final Logger log = LoggerFactory.getLogger(this.getClass());
 
-    private final Map<Name, String> messageHeaders;
-    private final Map<String, String> eventHeaders;
+    private static final byte LF = 10;
+
+    private final EslMessage message;
+    private final EslEventHeaderMap eventHeaders;
     private final List<String> eventBody;
     private boolean decodeEventHeaders = true;
 
@@ -64,16 +68,50 @@ public class EslEvent {
     }
 
     public EslEvent(EslMessage rawMessage, boolean parseCommandReply) {
-        messageHeaders = rawMessage.getHeaders();
-        eventHeaders = new HashMap<String, String>(rawMessage.getBodyLines().size());
+        message = rawMessage;
         eventBody = new ArrayList<String>();
-        // plain or xml body
-        if (rawMessage.getContentType().equals(Value.TEXT_EVENT_PLAIN)) {
-            parsePlainBody(rawMessage.getBodyLines());
-        } else if (rawMessage.getContentType().equals(Value.TEXT_EVENT_XML)) {
-            throw new IllegalStateException("XML events are not yet supported");
-        } else if (rawMessage.getContentType().equals(Value.COMMAND_REPLY) && parseCommandReply) {
-            parsePlainBody(rawMessage.getBodyLines());
+        // plain, json or xml body
+        if (rawMessage.getContentType().equals(Value.TEXT_EVENT_JSON)) {
+            // only when decoded by some other pipeline, the lines are one json text
+            ChannelBuffer body = ChannelBuffers.copiedBuffer(joinLines(rawMessage.getBodyLines()), CharsetUtil.UTF_8);
+            eventHeaders = new EslEventHeaderMap(body, countMembers(body), true);
+            JsonEventParser.parse(body, eventHeaders, eventBody);
+        } else {
+            eventHeaders = new EslEventHeaderMap(rawMessage.getBodyLineCount());
+            if (rawMessage.getContentType().equals(Value.TEXT_EVENT_PLAIN)) {
+                parsePlainBody(rawMessage.getBodyLines());
+            } else if (rawMessage.getContentType().equals(Value.TEXT_EVENT_XML)) {
+                ChannelBuffer body = ChannelBuffers.copiedBuffer(joinLines(rawMessage.getBodyLines()), CharsetUtil.UTF_8);
+                XmlEventParser.parse(body, eventHeaders, eventBody);
+            } else if (rawMessage.getContentType().equals(Value.COMMAND_REPLY) && parseCommandReply) {
+                parsePlainBody(rawMessage.getBodyLines());
+            } else {
+                throw new IllegalStateException("Unexpected EVENT content-type: " + rawMessage.getContentType());
+            }
+        }
+    }
+
+    /**
+     * Parse a {@code text/event-plain}, {@code text/event-json} or
+     * {@code text/event-xml} event straight from the body of the received frame. Used by the
+     * {@link EslFrameDecoder}, which then sends the event upstream in place of
+     * the message.
+     *
+     * @param rawMessage the message headers of the frame
+     * @param body       the body of the frame
+     */
+    public EslEvent(EslMessage rawMessage, ChannelBuffer body) {
+        message = rawMessage;
+        eventBody = new ArrayList<String>();
+        if (rawMessage.hasHeaderValue(Name.CONTENT_TYPE, Value.TEXT_EVENT_JSON)) {
+            eventHeaders = new EslEventHeaderMap(body, countMembers(body), true);
+            JsonEventParser.parse(body, eventHeaders, eventBody);
+        } else if (rawMessage.hasHeaderValue(Name.CONTENT_TYPE, Value.TEXT_EVENT_PLAIN)) {
+            eventHeaders = new EslEventHeaderMap(body, countLines(body), false);
+            parsePlainBody(body);
+        } else if (rawMessage.hasHeaderValue(Name.CONTENT_TYPE, Value.TEXT_EVENT_XML)) {
+            eventHeaders = new EslEventHeaderMap(64);
+            XmlEventParser.parse(body, eventHeaders, eventBody);
         } else {
             throw new IllegalStateException("Unexpected EVENT content-type: " + rawMessage.getContentType());
         }
@@ -88,7 +126,7 @@ public class EslEvent {
      * @return map of header values
      */
     public Map<Name, String> getMessageHeaders() {
-        return messageHeaders;
+        return message.getHeaders();
     }
 
     /**
@@ -96,6 +134,9 @@ public class EslEvent {
      * map keyed by the string name of the header, and the string mapped value
      * is the parsed content of the event header line (ie, it does not include
      * the header name).
+     * <p>
+     * Header values are URL decoded the first time each one is read. The map
+     * is read-only.
      *
      * @return map of event header values
      */
@@ -162,19 +203,12 @@ public class EslEvent {
         for (String rawLine : rawBodyLines) {
             if (!isEventBody) {
                 // split the line
-                String[] headerParts = HeaderParser.splitHeader(rawLine);
+                String[] headerParts = HeaderParser.splitEventHeader(rawLine);
                 if (decodeEventHeaders) {
-                    try {
-                        String decodedValue = URLDecoder.decode(headerParts[1], "UTF-8");
-//						log.trace("decoded from: [{}]", headerParts[1]);
-//						log.trace("decoded   to: [{}]", decodedValue);
-                        eventHeaders.put(headerParts[0], decodedValue);
-                    } catch (UnsupportedEncodingException e) {
-                        log.warn("Could not URL decode [{}]", headerParts[1]);
-                        eventHeaders.put(headerParts[0], headerParts[1]);
-                    }
+                    // values are URL decoded on first read
+                    eventHeaders.putRaw(headerParts[0], headerParts[1]);
                 } else {
-                    eventHeaders.put(headerParts[0], headerParts[1]);
+                    eventHeaders.putDecoded(headerParts[0], headerParts[1]);
                 }
                 if (headerParts[0].equals(EslEventHeaderNames.CONTENT_LENGTH)) {
                     // the remaining lines will be considered body lines
@@ -190,12 +224,85 @@ public class EslEvent {
 
     }
 
+    private void parsePlainBody(final ChannelBuffer body) {
+        final int end = body.writerIndex();
+        boolean isEventBody = false;
+        int start = body.readerIndex();
+        while (start < end) {
+            int lf = body.indexOf(start, end, LF);
+            if (lf < 0) {
+                lf = end;
+            }
+            if (lf == start) {
+                // ignore blank lines
+            } else if (!isEventBody) {
+                // split the line, the value is decoded on first read
+                int nameStart = HeaderParser.findNonWhitespace(body, start, lf);
+                int nameEnd = HeaderParser.findNameEnd(body, nameStart, lf);
+                int valueStart = HeaderParser.findValueStart(body, nameEnd, lf);
+                int valueEnd = HeaderParser.findEndOfString(body, valueStart, lf);
+                String name = HeaderNameDictionary.intern(body, nameStart, nameEnd);
+                eventHeaders.putRaw(name, valueStart, valueEnd - valueStart);
+                if (name.equals(EslEventHeaderNames.CONTENT_LENGTH)) {
+                    // the remaining lines will be considered body lines
+                    isEventBody = true;
+                }
+            } else {
+                eventBody.add(body.toString(start, lf - start, CharsetUtil.UTF_8));
+            }
+            start = lf + 1;
+        }
+    }
+
+    private static int countMembers(ChannelBuffer body) {
+        final int end = body.writerIndex();
+        int members = 1;
+        for (int i = body.indexOf(body.readerIndex(), end, (byte) ','); i >= 0; i = body.indexOf(i + 1, end, (byte) ',')) {
+            members++;
+        }
+        return members;
+    }
+
+    private static String joinLines(List<String> lines) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : lines) {
+            sb.append(line).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /*
+     * Add the non empty lines of an event body decoded from json or xml.
+     */
+    static void addLines(String body, List<String> bodyLines) {
+        int start = 0;
+        while (start < body.length()) {
+            int lf = body.indexOf('\n', start);
+            if (lf < 0) {
+                lf = body.length();
+            }
+            if (lf > start) {
+                bodyLines.add(body.substring(start, lf));
+            }
+            start = lf + 1;
+        }
+    }
+
+    private static int countLines(ChannelBuffer body) {
+        final int end = body.writerIndex();
+        int lines = 0;
+        for (int i = body.indexOf(body.readerIndex(), end, LF); i >= 0; i = body.indexOf(i + 1, end, LF)) {
+            lines++;
+        }
+        return lines;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder("EslEvent: name=[");
         sb.append(getEventName());
         sb.append("] headers=");
-        sb.append(messageHeaders.size());
+        sb.append(message.getHeaders().size());
         sb.append(", eventHeaders=");
         sb.append(eventHeaders.size());
         sb.append(", eventBody=");
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2010 david varnes.
+ *
+ * Licensed under the Apache License, version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.freeswitch.esl.transport.event;
+
+import com.freeswitch.esl.client.internal.PercentDecoder;
+import com.freeswitch.netty.buffer.ChannelBuffer;
+import com.freeswitch.netty.util.CharsetUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Read-only map of event header names to values, specialised for the 100 to
+ * 200 headers of a typical event.
+ * <p>
+ * Names and raw values are kept in two parallel arrays addressed by linear
+ * probing on the name hash, so an event costs two reference arrays rather
+ * than a table plus one node object per header. The map is filled once by
+ * the {@link EslEvent} parser and cannot be modified afterwards. Names are
+ * normally the canonical instances from the header name dictionary, so a key
+ * is compared by identity before falling back to {@code equals}.
+ * <p>
+ * Each value is URL decoded by {@link PercentDecoder} the first time it is
+ * read, rather than when the event is parsed. Values that contain neither
+ * {@code '%'} nor {@code '+'} need no decoding and are returned as stored.
+ * Decoded values are cached in a third array, created on first use; a
+ * concurrent reader that misses the cache simply decodes the value again.
+ * <p>
+ * When the event was parsed straight from a received frame the raw values
+ * are not strings at all but offsets into that frame, and every value is
+ * decoded from the frame bytes on first read: URL decoded for a plain event,
+ * unescaped by {@link JsonEventParser} for a json event.
+ */
+class EslEventHeaderMap extends AbstractMap<String, String> {
+    private static final Logger log = LoggerFactory.getLogger(EslEventHeaderMap.class);
+
+    private final ChannelBuffer frame;
+    private final boolean json;
+    private String[] keys;
+    private String[] values;
+    /*
+     * index/length pairs of the raw values in the frame, instead of values
+     */
+    private int[] offsets;
+    /*
+     * bit per slot, set when the raw value still needs decoding
+     */
+    private long[] encoded;
+    private String[] decoded;
+    private int size;
+    private Set<Entry<String, String>> entrySet;
+
+    EslEventHeaderMap(int expectedSize) {
+        this.frame = null;
+        this.json = false;
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    EslEventHeaderMap(ChannelBuffer frame, int expectedSize, boolean json) {
+        this.frame = frame;
+        this.json = json;
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    /**
+     * Used by the {@link EslEvent} parser.
+     *
+     * @param name     header name
+     * @param rawValue value exactly as received
+     */
+    void putRaw(String name, String rawValue) {
+        insert(name, rawValue, 0, 0, PercentDecoder.needsDecoding(rawValue));
+    }
+
+    /**
+     * Used by the {@link EslEvent} parser, when parsing from a frame.
+     *
+     * @param name   header name
+     * @param index  first byte of the raw value in the frame
+     * @param length length of the raw value
+     */
+    void putRaw(String name, int index, int length) {
+        insert(name, null, index, length, true);
+    }
+
+    /**
+     * Used by the {@link EslEvent} parser, for a value that is not to be
+     * decoded.
+     *
+     * @param name  header name
+     * @param value header value
+     */
+    void putDecoded(String name, String value) {
+        insert(name, value, 0, 0, false);
+    }
+
+    /**
+     * Used by the {@link EslEvent} parser, when not parsing from a frame.
+     *
+     * @param name header name
+     * @return the value as stored, before any decoding
+     */
+    String getRaw(String name) {
+        int slot = find(name);
+        return slot < 0 ? null : values[slot];
+    }
+
+    @Override
+    public String get(Object key) {
+        int slot = find(key);
+        return slot < 0 ? null : valueAt(slot);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return find(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        Set<Entry<String, String>> entrySet = this.entrySet;
+        if (entrySet == null) {
+            this.entrySet = entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        // keep the load factor under 3/4
+        int minimum = Math.max(8, expectedSize + (expectedSize >> 1) + 1);
+        return Integer.highestOneBit(minimum - 1) << 1;
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ h >>> 16;
+    }
+
+    private void allocate(int capacity) {
+        keys = new String[capacity];
+        if (frame == null) {
+            values = new String[capacity];
+        } else {
+            offsets = new int[capacity * 2];
+        }
+        encoded = new long[(capacity + 63) >>> 6];
+        size = 0;
+    }
+
+    private void insert(String name, String value, int index, int length, boolean needsDecoding) {
+        int mask = keys.length - 1;
+        int slot = hash(name) & mask;
+        String key;
+        while ((key = keys[slot]) != null) {
+            if (key == name || key.equals(name)) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if (key == null) {
+            if (size + 1 > keys.length - (keys.length >> 2)) {
+                grow();
+                insert(name, value, index, length, needsDecoding);
+                return;
+            }
+            keys[slot] = name;
+            size++;
+        }
+        if (frame == null) {
+            values[slot] = value;
+        } else {
+            offsets[slot * 2] = index;
+            offsets[slot * 2 + 1] = length;
+        }
+        if (needsDecoding) {
+            encoded[slot >>> 6] |= 1L << slot;
+        } else {
+            encoded[slot >>> 6] &= ~(1L << slot);
+        }
+    }
+
+    private void grow() {
+        String[] oldKeys = keys;
+        String[] oldValues = values;
+        int[] oldOffsets = offsets;
+        long[] oldEncoded = encoded;
+        allocate(oldKeys.length << 1);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                if (frame == null) {
+                    insert(oldKeys[i], oldValues[i], 0, 0, (oldEncoded[i >>> 6] & 1L << i) != 0);
+                } else {
+                    insert(oldKeys[i], null, oldOffsets[i * 2], oldOffsets[i * 2 + 1], true);
+                }
+            }
+        }
+    }
+
+    private int find(Object key) {
+        if (key == null) {
+            return -1;
+        }
+        String[] keys = this.keys;
+        int mask = keys.length - 1;
+        int slot = hash(key) & mask;
+        String candidate;
+        while ((candidate = keys[slot]) != null) {
+            if (candidate == key || candidate.equals(key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private String valueAt(int slot) {
+        if ((encoded[slot >>> 6] & 1L << slot) == 0) {
+            return values[slot];
+        }
+        String[] decoded = this.decoded;
+        if (decoded == null) {
+            this.decoded = decoded = new String[keys.length];
+        }
+        String value = decoded[slot];
+        if (value == null) {
+            value = frame == null ? decode(values[slot]) : decode(frame, offsets[slot * 2], offsets[slot * 2 + 1], json);
+            decoded[slot] = value;
+        }
+        return value;
+    }
+
+    private static String decode(String raw) {
+        try {
+            return PercentDecoder.decode(raw);
+        } catch (IllegalArgumentException e) {
+            log.warn("Could not URL decode [{}]", raw);
+            return raw;
+        }
+    }
+
+    private static String decode(ChannelBuffer frame, int index, int length, boolean json) {
+        try {
+            if (json) {
+                return JsonEventParser.decodeValue(frame, index, length);
+            }
+            return PercentDecoder.decode(frame, index, length);
+        } catch (IllegalArgumentException e) {
+            String raw = frame.toString(index, length, CharsetUtil.UTF_8);
+            log.warn("Could not decode [{}]", raw);
+            return raw;
+        }
+    }
+
+    private final class EntrySet extends AbstractSet<Entry<String, String>> {
+        @Override
+        public Iterator<Entry<String, String>> iterator() {
+            return new Iterator<Entry<String, String>>() {
+                private int next = advance(0);
+
+                private int advance(int slot) {
+                    while (slot < keys.length && keys[slot] == null) {
+                        slot++;
+                    }
+                    return slot;
+                }
+
+                public boolean hasNext() {
+                    return next < keys.length;
+                }
+
+                public Entry<String, String> next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    int slot = next;
+                    next = advance(slot + 1);
+                    return new SimpleImmutableEntry<String, String>(keys[slot], valueAt(slot));
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException("Event headers are read-only");
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
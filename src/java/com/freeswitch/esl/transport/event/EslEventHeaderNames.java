@@ -29,6 +29,10 @@ public class EslEventHeaderNames {
      * {@code "Event-Name"}
      */
     public static final String EVENT_NAME = "Event-Name";
+    /**
+     * {@code "Event-Subclass"}
+     */
+    public static final String EVENT_SUBCLASS = "Event-Subclass";
     /**
      * {@code "Event-Date-Local"}
      */
@@ -81,6 +85,10 @@ public class EslEventHeaderNames {
      * {@code "Job-UUID"}
      */
     public static final String JOB_UUID = "Job-UUID";
+    /**
+     * {@code "Unique-ID"}
+     */
+    public static final String UNIQUE_ID = "Unique-ID";
 
     private EslEventHeaderNames() {
         /* private class */
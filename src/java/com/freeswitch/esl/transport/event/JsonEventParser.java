@@ -0,0 +1,238 @@
+/*
+ * Copyright 2010 david varnes.
+ *
+ * Licensed under the Apache License, version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.freeswitch.esl.transport.event;
+
+import com.freeswitch.esl.client.internal.HeaderNameDictionary;
+import com.freeswitch.netty.buffer.ChannelBuffer;
+import com.freeswitch.netty.util.CharsetUtil;
+
+import java.util.List;
+
+/**
+ * Streaming parser for the body of a {@code text/event-json} event.
+ * <p>
+ * FreeSWITCH sends a json event as one flat object of header name to value,
+ * with the event body, if any, under {@code "_body"}. The parser walks the
+ * frame bytes once, interning each name and recording the position of each
+ * raw json value in the {@link EslEventHeaderMap}; values are only unescaped
+ * by {@link #decodeValue(ChannelBuffer, int, int)} when first read. A header
+ * sent as an array of strings is presented the way the plain format presents
+ * it, as {@code ARRAY::first|:second}.
+ */
+final class JsonEventParser {
+    private static final String BODY = "_body";
+
+    private JsonEventParser() {
+        /* static class */
+    }
+
+    /**
+     * Parse the json object in the body of a frame.
+     *
+     * @param body      the frame body
+     * @param headers   map to fill with the raw value positions
+     * @param bodyLines list to fill with the lines of {@code "_body"}
+     */
+    static void parse(ChannelBuffer body, EslEventHeaderMap headers, List<String> bodyLines) {
+        final int end = body.writerIndex();
+        int i = expect(body, skipWhitespace(body, body.readerIndex(), end), end, '{');
+        i = skipWhitespace(body, i, end);
+        if (i < end && body.getByte(i) == '}') {
+            return;
+        }
+        while (true) {
+            int nameStart = expect(body, i, end, '"');
+            int nameEnd = skipString(body, nameStart - 1, end) - 1;
+            String name = hasEscape(body, nameStart, nameEnd)
+                    ? unescape(body, nameStart, nameEnd)
+                    : HeaderNameDictionary.intern(body, nameStart, nameEnd);
+            int valueStart = skipWhitespace(body, expect(body, skipWhitespace(body, nameEnd + 1, end), end, ':'), end);
+            int valueEnd = skipValue(body, valueStart, end);
+            if (name.equals(BODY)) {
+                EslEvent.addLines(decodeValue(body, valueStart, valueEnd - valueStart), bodyLines);
+            } else {
+                headers.putRaw(name, valueStart, valueEnd - valueStart);
+            }
+            i = skipWhitespace(body, valueEnd, end);
+            if (i < end && body.getByte(i) == ',') {
+                i = skipWhitespace(body, i + 1, end);
+            } else {
+                expect(body, i, end, '}');
+                return;
+            }
+        }
+    }
+
+    /**
+     * Decode a raw json value recorded by {@link #parse}.
+     *
+     * @param frame  the frame body
+     * @param index  first byte of the value
+     * @param length length of the value, including any quotes or brackets
+     * @return the value as a string
+     */
+    static String decodeValue(ChannelBuffer frame, int index, int length) {
+        final int end = index + length;
+        byte first = frame.getByte(index);
+        if (first == '"') {
+            if (hasEscape(frame, index + 1, end - 1)) {
+                return unescape(frame, index + 1, end - 1);
+            }
+            return frame.toString(index + 1, length - 2, CharsetUtil.UTF_8);
+        }
+        if (first == '[') {
+            StringBuilder sb = new StringBuilder(length + 8).append("ARRAY::");
+            int i = skipWhitespace(frame, index + 1, end);
+            while (i < end && frame.getByte(i) != ']') {
+                int valueEnd = skipValue(frame, i, end);
+                if (sb.length() > 7) {
+                    sb.append("|:");
+                }
+                sb.append(decodeValue(frame, i, valueEnd - i));
+                i = skipWhitespace(frame, valueEnd, end);
+                if (i < end && frame.getByte(i) == ',') {
+                    i = skipWhitespace(frame, i + 1, end);
+                }
+            }
+            return sb.toString();
+        }
+        // a number, literal or nested object, as it was sent
+        return frame.toString(index, length, CharsetUtil.UTF_8);
+    }
+
+    private static int expect(ChannelBuffer buffer, int index, int end, char c) {
+        if (index >= end || buffer.getByte(index) != c) {
+            throw new IllegalStateException("Malformed json event, expected '" + c + "' at offset " + index);
+        }
+        return index + 1;
+    }
+
+    private static int skipWhitespace(ChannelBuffer buffer, int index, int end) {
+        while (index < end) {
+            byte b = buffer.getByte(index);
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                break;
+            }
+            index++;
+        }
+        return index;
+    }
+
+    /**
+     * @return index just after the closing quote of the string starting at
+     * {@code index}
+     */
+    private static int skipString(ChannelBuffer buffer, int index, int end) {
+        for (int i = index + 1; i < end; i++) {
+            byte b = buffer.getByte(i);
+            if (b == '\\') {
+                i++;
+            } else if (b == '"') {
+                return i + 1;
+            }
+        }
+        throw new IllegalStateException("Malformed json event, unterminated string at offset " + index);
+    }
+
+    /**
+     * @return index just after the json value starting at {@code index}
+     */
+    private static int skipValue(ChannelBuffer buffer, int index, int end) {
+        if (index >= end) {
+            throw new IllegalStateException("Malformed json event, missing value at offset " + index);
+        }
+        byte first = buffer.getByte(index);
+        if (first == '"') {
+            return skipString(buffer, index, end);
+        }
+        if (first == '[' || first == '{') {
+            int depth = 0;
+            for (int i = index; i < end; i++) {
+                byte b = buffer.getByte(i);
+                if (b == '"') {
+                    i = skipString(buffer, i, end) - 1;
+                } else if (b == '[' || b == '{') {
+                    depth++;
+                } else if ((b == ']' || b == '}') && --depth == 0) {
+                    return i + 1;
+                }
+            }
+            throw new IllegalStateException("Malformed json event, unterminated value at offset " + index);
+        }
+        int i = index;
+        while (i < end) {
+            byte b = buffer.getByte(i);
+            if (b == ',' || b == '}' || b == ']' || b == ' ' || b == '\t' || b == '\n' || b == '\r') {
+                break;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private static boolean hasEscape(ChannelBuffer buffer, int start, int end) {
+        return buffer.indexOf(start, end, (byte) '\\') >= 0;
+    }
+
+    private static String unescape(ChannelBuffer buffer, int start, int end) {
+        StringBuilder sb = new StringBuilder(end - start);
+        int run = start;
+        for (int i = start; i < end; i++) {
+            if (buffer.getByte(i) != '\\') {
+                continue;
+            }
+            if (i > run) {
+                sb.append(buffer.toString(run, i - run, CharsetUtil.UTF_8));
+            }
+            if (++i >= end) {
+                throw new IllegalArgumentException("Incomplete json escape");
+            }
+            byte c = buffer.getByte(i);
+            switch (c) {
+                case 'b':
+                    sb.append('\b');
+                    break;
+                case 'f':
+                    sb.append('\f');
+                    break;
+                case 'n':
+                    sb.append('\n');
+                    break;
+                case 'r':
+                    sb.append('\r');
+                    break;
+                case 't':
+                    sb.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 >= end) {
+                        throw new IllegalArgumentException("Incomplete json unicode escape");
+                    }
+                    sb.append((char) Integer.parseInt(buffer.toString(i + 1, 4, CharsetUtil.US_ASCII), 16));
+                    i += 4;
+                    break;
+                default:
+                    // '"', '\\' and '/' stand for themselves
+                    sb.append((char) c);
+            }
+            run = i + 1;
+        }
+        if (end > run) {
+            sb.append(buffer.toString(run, end - run, CharsetUtil.UTF_8));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2010 david varnes.
+ *
+ * Licensed under the Apache License, version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.freeswitch.esl.transport.event;
+
+import com.freeswitch.esl.client.internal.HeaderNameDictionary;
+import com.freeswitch.netty.buffer.ChannelBuffer;
+import com.freeswitch.netty.buffer.ChannelBufferInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.util.List;
+
+/**
+ * Pull parser for the body of a {@code text/event-xml} event.
+ * <p>
+ * FreeSWITCH sends an xml event as
+ * <pre>
+ *   &lt;event&gt;
+ *     &lt;headers&gt;
+ *       &lt;Event-Name&gt;CHANNEL_ANSWER&lt;/Event-Name&gt;
+ *       ...
+ *     &lt;/headers&gt;
+ *     &lt;body&gt;...&lt;/body&gt;
+ *   &lt;/event&gt;
+ * </pre>
+ * The parser reads it with a StAX {@link XMLStreamReader} straight from the
+ * frame, without building a DOM, and fills the same {@link EslEventHeaderMap}
+ * as the other formats. FreeSWITCH URL encodes the header values inside the
+ * xml as well, so they are stored raw and decoded on first read, as in the
+ * plain format. A header repeated for each element of an array is presented
+ * the way the plain format presents it, as {@code ARRAY::first|:second}.
+ * <p>
+ * An {@link XMLInputFactory} is not guaranteed to be thread safe, so each
+ * thread decoding events has its own.
+ */
+final class XmlEventParser {
+    private static final ThreadLocal<XMLInputFactory> factories = new ThreadLocal<XMLInputFactory>() {
+        @Override
+        protected XMLInputFactory initialValue() {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            // events never need a DTD, and must not be able to pull one in
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+            factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+            return factory;
+        }
+    };
+
+    private XmlEventParser() {
+        /* static class */
+    }
+
+    /**
+     * Parse the xml document in the body of a frame.
+     *
+     * @param body      the frame body
+     * @param headers   map to fill with the header values
+     * @param bodyLines list to fill with the lines of the body element
+     */
+    static void parse(ChannelBuffer body, EslEventHeaderMap headers, List<String> bodyLines) {
+        XMLStreamReader reader = null;
+        try {
+            reader = factories.get().createXMLStreamReader(new ChannelBufferInputStream(body), "UTF-8");
+            int depth = 0;
+            boolean inHeaders = false;
+            while (reader.hasNext()) {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    depth++;
+                    String element = reader.getLocalName();
+                    if (depth == 2 && element.equals("headers")) {
+                        inHeaders = true;
+                    } else if (depth == 3 && inHeaders) {
+                        String name = HeaderNameDictionary.intern(element, 0, element.length());
+                        String value = reader.getElementText();
+                        depth--;
+                        // the separators need no decoding, so still decode as one value
+                        String previous = headers.getRaw(name);
+                        if (previous == null) {
+                            headers.putRaw(name, value);
+                        } else if (previous.startsWith("ARRAY::")) {
+                            headers.putRaw(name, previous + "|:" + value);
+                        } else {
+                            headers.putRaw(name, "ARRAY::" + previous + "|:" + value);
+                        }
+                    } else if (depth == 2 && element.equals("body")) {
+                        EslEvent.addLines(reader.getElementText(), bodyLines);
+                        depth--;
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT) {
+                    if (depth == 2) {
+                        inHeaders = false;
+                    }
+                    depth--;
+                }
+            }
+        } catch (XMLStreamException e) {
+            throw new IllegalStateException("Malformed xml event", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // nothing more to read anyway
+                }
+            }
+        }
+    }
+}
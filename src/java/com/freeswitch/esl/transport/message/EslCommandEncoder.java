@@ -0,0 +1,197 @@
+/*
+ * Copyright 2010 david varnes.
+ *
+ * Licensed under the Apache License, version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.freeswitch.esl.transport.message;
+
+import com.freeswitch.esl.transport.EslCommand;
+import com.freeswitch.esl.transport.SendMsg;
+import com.freeswitch.netty.buffer.ChannelBuffer;
+import com.freeswitch.netty.channel.Channel;
+import com.freeswitch.netty.channel.ChannelHandler.Sharable;
+import com.freeswitch.netty.channel.ChannelHandlerContext;
+import com.freeswitch.netty.handler.codec.oneone.OneToOneEncoder;
+
+import java.util.List;
+
+/**
+ * Encoder used by the IO processing pipeline. Client consumers should never
+ * need to use this class.
+ * <p>
+ * Writes the commands sent to FreeSWITCH as UTF-8, straight from their parts
+ * into a buffer of the exact encoded size, with no intermediate string for
+ * the whole message. Accepts
+ * <ul>
+ * <li>an {@link EslCommand}, written as one line followed by a blank line</li>
+ * <li>a {@link SendMsg}, written as the 'sendmsg' line and its 'name: value'
+ * lines followed by a blank line</li>
+ * <li>a {@link List} of lines, each written followed by a line feed, then a
+ * blank line</li>
+ * <li>a {@link String}, written as it is</li>
+ * </ul>
+ * Any other message is passed down unchanged.
+ */
+@Sharable
+public class EslCommandEncoder extends OneToOneEncoder {
+    private static final byte LF = '\n';
+    private static final byte SPACE = ' ';
+    private static final byte[] SENDMSG = {'s', 'e', 'n', 'd', 'm', 's', 'g'};
+    private static final byte[] NAME_VALUE_SEPARATOR = {':', ' '};
+
+    @Override
+    protected Object encode(ChannelHandlerContext ctx, Channel channel, Object msg) throws Exception {
+        if (msg instanceof EslCommand) {
+            return encodeCommand(channel, (EslCommand) msg);
+        } else if (msg instanceof SendMsg) {
+            return encodeSendMsg(channel, (SendMsg) msg);
+        } else if (msg instanceof List) {
+            return encodeLines(channel, (List<?>) msg);
+        } else if (msg instanceof String) {
+            String command = (String) msg;
+            ChannelBuffer buffer = newBuffer(channel, utf8Length(command));
+            writeUtf8(buffer, command);
+            return buffer;
+        }
+
+        return msg;
+    }
+
+    private static ChannelBuffer encodeCommand(Channel channel, EslCommand command) {
+        int length = 0;
+        for (int i = 0; i < command.getWordCount(); i++) {
+            String word = command.getWord(i);
+            if (word != null && !word.isEmpty()) {
+                length += (length > 0 ? 1 : 0) + utf8Length(word);
+            }
+        }
+        ChannelBuffer buffer = newBuffer(channel, length + 2);
+        for (int i = 0; i < command.getWordCount(); i++) {
+            String word = command.getWord(i);
+            if (word != null && !word.isEmpty()) {
+                if (buffer.writerIndex() > 0) {
+                    buffer.writeByte(SPACE);
+                }
+                writeUtf8(buffer, word);
+            }
+        }
+        buffer.writeByte(LF);
+        buffer.writeByte(LF);
+        return buffer;
+    }
+
+    private static ChannelBuffer encodeSendMsg(Channel channel, SendMsg sendMsg) {
+        String uuid = sendMsg.getUuid();
+        int length = SENDMSG.length + 2;
+        if (uuid != null) {
+            length += 1 + utf8Length(uuid);
+        }
+        // a null name or value is sent as "null", as getMsgLines() has it
+        for (int i = 0; i < sendMsg.getLineCount(); i++) {
+            length += utf8Length(String.valueOf(sendMsg.getLineName(i))) + NAME_VALUE_SEPARATOR.length
+                    + utf8Length(String.valueOf(sendMsg.getLineValue(i))) + 1;
+        }
+        ChannelBuffer buffer = newBuffer(channel, length);
+        buffer.writeBytes(SENDMSG);
+        if (uuid != null) {
+            buffer.writeByte(SPACE);
+            writeUtf8(buffer, uuid);
+        }
+        buffer.writeByte(LF);
+        for (int i = 0; i < sendMsg.getLineCount(); i++) {
+            writeUtf8(buffer, String.valueOf(sendMsg.getLineName(i)));
+            buffer.writeBytes(NAME_VALUE_SEPARATOR);
+            writeUtf8(buffer, String.valueOf(sendMsg.getLineValue(i)));
+            buffer.writeByte(LF);
+        }
+        buffer.writeByte(LF);
+        return buffer;
+    }
+
+    private static ChannelBuffer encodeLines(Channel channel, List<?> lines) {
+        int length = 1;
+        for (Object line : lines) {
+            length += utf8Length(String.valueOf(line)) + 1;
+        }
+        ChannelBuffer buffer = newBuffer(channel, length);
+        for (Object line : lines) {
+            writeUtf8(buffer, String.valueOf(line));
+            buffer.writeByte(LF);
+        }
+        buffer.writeByte(LF);
+        return buffer;
+    }
+
+    private static ChannelBuffer newBuffer(Channel channel, int length) {
+        return channel.getConfig().getBufferFactory().getBuffer(length);
+    }
+
+    /**
+     * The number of bytes {@link #writeUtf8(ChannelBuffer, CharSequence)}
+     * writes for the characters.
+     */
+    static int utf8Length(CharSequence chars) {
+        int length = chars.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                    // two chars, four bytes
+                    bytes += 2;
+                    i++;
+                }
+                // otherwise a lone surrogate, replaced by '?'
+            } else {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Write the characters as UTF-8, replacing a lone surrogate by '?' as
+     * {@link String#getBytes(java.nio.charset.Charset)} does.
+     */
+    static void writeUtf8(ChannelBuffer buffer, CharSequence chars) {
+        int length = chars.length();
+        for (int i = 0; i < length; i++) {
+            char c = chars.charAt(i);
+            if (c < 0x80) {
+                buffer.writeByte(c);
+            } else if (c < 0x800) {
+                buffer.writeByte(0xc0 | c >> 6);
+                buffer.writeByte(0x80 | c & 0x3f);
+            } else if (Character.isSurrogate(c)) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(chars.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, chars.charAt(++i));
+                    buffer.writeByte(0xf0 | codePoint >> 18);
+                    buffer.writeByte(0x80 | codePoint >> 12 & 0x3f);
+                    buffer.writeByte(0x80 | codePoint >> 6 & 0x3f);
+                    buffer.writeByte(0x80 | codePoint & 0x3f);
+                } else {
+                    buffer.writeByte('?');
+                }
+            } else {
+                buffer.writeByte(0xe0 | c >> 12);
+                buffer.writeByte(0x80 | c >> 6 & 0x3f);
+                buffer.writeByte(0x80 | c & 0x3f);
+            }
+        }
+    }
+}
@@ -16,12 +16,16 @@
 package com.freeswitch.esl.transport.message;
 
 import com.freeswitch.esl.client.internal.HeaderParser;
+import com.freeswitch.esl.transport.event.EslEvent;
 import com.freeswitch.esl.transport.message.EslHeaders.Name;
+import com.freeswitch.esl.transport.message.EslHeaders.Value;
 import com.freeswitch.netty.buffer.ChannelBuffer;
 import com.freeswitch.netty.channel.Channel;
 import com.freeswitch.netty.channel.ChannelHandlerContext;
+import com.freeswitch.netty.handler.codec.frame.CorruptedFrameException;
+import com.freeswitch.netty.handler.codec.frame.FrameDecoder;
 import com.freeswitch.netty.handler.codec.frame.TooLongFrameException;
-import com.freeswitch.netty.handler.codec.replay.ReplayingDecoder;
+import com.freeswitch.netty.util.CharsetUtil;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -44,10 +48,26 @@ import org.slf4j.LoggerFactory;
  *    Loop until receive buffer size is >= Content-length
  *    Extract content-length bytes from buffer and process
  * </pre>
+ * <p>
+ * The header section is located with {@link ChannelBuffer#indexOf(int, int, byte)}
+ * rather than by reading byte by byte. When a packet ends part way through a
+ * header section the offset already scanned is remembered (relative to the
+ * reader index of the cumulation), so the next packet only scans the newly
+ * arrived bytes and nothing is ever decoded twice.
+ * <p>
+ * Header values and body lines are not turned into strings here; each
+ * {@link EslMessage} keeps a slice of its frame and the offsets of its lines,
+ * so the bytes are only decoded if they are read.
+ * <p>
+ * A {@code text/event-plain} or {@code text/event-json} frame is not split
+ * into body lines at all: its
+ * body is handed to {@link EslEvent} which parses the event headers from the
+ * frame bytes in the same pass, and the decoder sends the {@link EslEvent}
+ * upstream in place of an {@link EslMessage}.
  *
  * @author david varnes
  */
-public class EslFrameDecoder extends ReplayingDecoder<EslFrameDecoder.State> {
+public class EslFrameDecoder extends FrameDecoder {
     /**
      * Line feed character
      */
@@ -56,8 +76,17 @@ public class EslFrameDecoder extends ReplayingDecoder<EslFrameDecoder.State> {
     private final int maxHeaderSize;
     private EslMessage currentMessage;
     private boolean treatUnknownHeadersAsBody = false;
+    private State state = State.READ_HEADER;
+    /*
+     * Progress of the header scan, both relative to the reader index of the
+     * cumulation buffer, which does not move until the whole header section
+     * has arrived.
+     */
+    private int scannedBytes;
+    private int lineStart;
+    private int headerLength;
+
     public EslFrameDecoder(int maxHeaderSize) {
-        super(State.READ_HEADER);
         if (maxHeaderSize <= 0) {
             throw new IllegalArgumentException("maxHeaderSize must be a positive integer: " + maxHeaderSize);
         }
@@ -70,119 +99,150 @@ public class EslFrameDecoder extends ReplayingDecoder<EslFrameDecoder.State> {
     }
 
     @Override
-    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer, State state) throws Exception {
+    @SuppressWarnings("fallthrough")
+    protected Object decode(ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
 //		log.trace("decode() : state [{}]", state);
         switch (state) {
             case READ_HEADER:
-                if (currentMessage == null) {
-                    currentMessage = new EslMessage();
-                }
-            /*
-			 * read '\n' terminated lines until reach a single '\n'
-			 */
-                boolean reachedDoubleLF = false;
-                while (!reachedDoubleLF) {
-                    // this will read or fail
-                    String headerLine = readToLineFeedOrFail(buffer, maxHeaderSize);
-//				log.debug("read header line [{}]", headerLine);
-                    if (!headerLine.isEmpty()) {
-                        // split the header line
-                        String[] headerParts = HeaderParser.splitHeader(headerLine);
-                        Name headerName = Name.fromLiteral(headerParts[0]);
-                        if (headerName == null) {
-                            if (treatUnknownHeadersAsBody) {
-                                // cache this 'header' as a body line <-- useful for
-                                // Outbound client mode
-                                currentMessage.addBodyLine(headerLine);
-                            } else {
-                                throw new IllegalStateException("Unhandled ESL header [" + headerParts[0] + ']');
-                            }
-                        }
-                        currentMessage.addHeader(headerName, headerParts[1]);
-                    } else {
-                        reachedDoubleLF = true;
-                    }
-                    // do not read in this line again
-                    checkpoint();
-                }
-                // have read all headers - check for content-length
-                if (currentMessage.hasContentLength()) {
-                    checkpoint(State.READ_BODY);
-//				log.debug("have content-length, decoding body ..");
-                    // force the next section
-
+                int headerEnd = findEndOfHeaders(buffer);
+                if (headerEnd < 0) {
+                    // wait for more bytes, the scan resumes where it stopped
                     return null;
-                } else {
-                    // end of message
-                    checkpoint(State.READ_HEADER);
-                    // send message upstream
-                    EslMessage decodedMessage = currentMessage;
-                    currentMessage = null;
-
-                    return decodedMessage;
                 }
+                currentMessage = new EslMessage();
+                readHeaders(buffer, buffer.readerIndex(), headerEnd);
+                headerLength = headerEnd + 1 - buffer.readerIndex();
+                scannedBytes = 0;
+                lineStart = 0;
+                state = State.READ_BODY;
+                // fall through, the body may well be in the buffer already
 
             case READ_BODY:
 			/*
-			 * read the content-length specified
+			 * wait for the content-length specified, the headers are left in
+			 * the buffer so that the whole frame can be sliced in one piece
 			 */
-                int contentLength = currentMessage.getContentLength();
-                ChannelBuffer bodyBytes = buffer.readBytes(contentLength);
-//			log.debug("read [{}] body bytes", bodyBytes.writerIndex());
-                // most bodies are line based, so split on LF
-                while (bodyBytes.readable()) {
-                    String bodyLine = readLine(bodyBytes, contentLength);
-//				log.debug("read body line [{}]", bodyLine);
-                    currentMessage.addBodyLine(bodyLine);
+                int frameLength = headerLength;
+                if (currentMessage.hasContentLength()) {
+                    frameLength += currentMessage.getContentLength();
                 }
+                if (buffer.readableBytes() < frameLength) {
+                    return null;
+                }
+                int frameStart = buffer.readerIndex();
+                int bodyStart = frameStart + headerLength;
+                currentMessage.setFrame(buffer.slice(frameStart, frameLength));
+                Object decoded;
+                if (currentMessage.hasHeaderValue(Name.CONTENT_TYPE, Value.TEXT_EVENT_PLAIN)
+                        || currentMessage.hasHeaderValue(Name.CONTENT_TYPE, Value.TEXT_EVENT_JSON)
+                        || currentMessage.hasHeaderValue(Name.CONTENT_TYPE, Value.TEXT_EVENT_XML)) {
+                    // parse the event straight from the body, no body lines
+                    decoded = new EslEvent(currentMessage, buffer.slice(bodyStart, frameLength - headerLength));
+                } else {
+                    readBodyLines(buffer, bodyStart, frameStart + frameLength, frameStart);
+                    decoded = currentMessage;
+                }
+                buffer.readerIndex(frameStart + frameLength);
 
                 // end of message
-                checkpoint(State.READ_HEADER);
-                // send message upstream
-                EslMessage decodedMessage = currentMessage;
+                state = State.READ_HEADER;
                 currentMessage = null;
 
-                return decodedMessage;
+                // send message or event upstream
+                return decoded;
 
             default:
                 throw new Error("Illegal state: [" + state + ']');
         }
     }
 
-    private String readToLineFeedOrFail(ChannelBuffer buffer, int maxLineLegth) throws TooLongFrameException {
-        StringBuilder sb = new StringBuilder(64);
-        while (true) {
-            // this read might fail
-            byte nextByte = buffer.readByte();
-            if (nextByte == LF) {
-                return sb.toString();
-            } else {
-                // Abort decoding if the decoded line is too large.
-                if (sb.length() >= maxLineLegth) {
-                    throw new TooLongFrameException("ESL header line is longer than " + maxLineLegth + " bytes.");
-                }
-                sb.append((char) nextByte);
+    /**
+     * Scan forward from the last scanned offset for a line feed that ends an
+     * empty line.
+     *
+     * @return the index of the terminating line feed, or -1 if the header
+     * section is not yet complete
+     */
+    private int findEndOfHeaders(ChannelBuffer buffer) throws TooLongFrameException {
+        final int readerIndex = buffer.readerIndex();
+        final int writerIndex = buffer.writerIndex();
+        int index = readerIndex + scannedBytes;
+        while (index < writerIndex) {
+            int lf = buffer.indexOf(index, writerIndex, LF);
+            if (lf < 0) {
+                break;
+            }
+            int start = readerIndex + lineStart;
+            if (lf == start) {
+                return lf;
+            }
+            if (lf - start > maxHeaderSize) {
+                throw new TooLongFrameException("ESL header line is longer than " + maxHeaderSize + " bytes.");
             }
+            lineStart = lf + 1 - readerIndex;
+            index = lf + 1;
         }
+        scannedBytes = writerIndex - readerIndex;
+        if (scannedBytes - lineStart > maxHeaderSize) {
+            throw new TooLongFrameException("ESL header line is longer than " + maxHeaderSize + " bytes.");
+        }
+        return -1;
     }
 
-    private String readLine(ChannelBuffer buffer, int maxLineLength) throws TooLongFrameException {
-        StringBuilder sb = new StringBuilder(64);
-        while (buffer.readable()) {
-            // this read should always succeed
-            byte nextByte = buffer.readByte();
-            if (nextByte == LF) {
-                return sb.toString();
+    private void readHeaders(ChannelBuffer buffer, int frameStart, int end) throws CorruptedFrameException {
+        int start = frameStart;
+        while (start < end) {
+            int lf = buffer.indexOf(start, end, LF);
+            // split the header line
+            int nameStart = HeaderParser.findNonWhitespace(buffer, start, lf);
+            int nameEnd = HeaderParser.findNameEnd(buffer, nameStart, lf);
+            int valueStart = HeaderParser.findValueStart(buffer, nameEnd, lf);
+            int valueEnd = HeaderParser.findEndOfString(buffer, valueStart, lf);
+
+            Name headerName = Name.fromLiteral(buffer, nameStart, nameEnd - nameStart);
+            if (headerName == null) {
+                if (treatUnknownHeadersAsBody) {
+                    // cache this 'header' as a body line <-- useful for
+                    // Outbound client mode
+                    currentMessage.addBodyLine(start - frameStart, lf - frameStart);
+                } else {
+                    throw new IllegalStateException("Unhandled ESL header [" + buffer.toString(nameStart, nameEnd - nameStart, CharsetUtil.US_ASCII) + ']');
+                }
             } else {
-                // Abort decoding if the decoded line is too large.
-                if (sb.length() >= maxLineLength) {
-                    throw new TooLongFrameException("ESL message line is longer than " + maxLineLength + " bytes.");
+                currentMessage.addHeader(headerName, valueStart - frameStart, valueEnd - frameStart);
+                if (headerName == Name.CONTENT_LENGTH) {
+                    currentMessage.setContentLength(parseContentLength(buffer, valueStart, valueEnd));
                 }
-                sb.append((char) nextByte);
             }
+            start = lf + 1;
         }
+    }
+
+    private int parseContentLength(ChannelBuffer buffer, int start, int end) throws CorruptedFrameException {
+        if (start == end || end - start > 9) {
+            throw new CorruptedFrameException("Invalid ESL Content-Length [" + buffer.toString(start, end - start, CharsetUtil.US_ASCII) + ']');
+        }
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer.getByte(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new CorruptedFrameException("Invalid ESL Content-Length [" + buffer.toString(start, end - start, CharsetUtil.US_ASCII) + ']');
+            }
+            value = value * 10 + digit;
+        }
+        return value;
+    }
 
-        return sb.toString();
+    private void readBodyLines(ChannelBuffer buffer, int start, int end, int frameStart) {
+        // most bodies are line based, so split on LF
+        while (start < end) {
+            int lf = buffer.indexOf(start, end, LF);
+            if (lf < 0) {
+                lf = end;
+            }
+            currentMessage.addBodyLine(start - frameStart, lf - frameStart);
+            start = lf + 1;
+        }
     }
 
     protected static enum State {
@@ -15,6 +15,12 @@
  */
 package com.freeswitch.esl.transport.message;
 
+import com.freeswitch.netty.buffer.ChannelBuffer;
+import com.freeswitch.netty.util.CharsetUtil;
+
+import java.util.Arrays;
+import java.util.Locale;
+
 /**
  * Container class for enumeration of ESL message header names, and some
  * commonly used header string values.
@@ -31,11 +37,6 @@ public class EslHeaders {
      * @author david varnes
      */
     public enum Name {
-        /*
-		 * Minor optimization - put most often used headers at the top for
-		 * fastest resolution in static fromLiteral().
-		 */
-
         /**
          * {@code "Content-Type"}
          */
@@ -61,14 +62,45 @@ public class EslHeaders {
          */
         Control("Control"),;
 
+        /*
+         * Names indexed by literal length, so fromLiteral() compares against
+         * at most a couple of candidates (currently exactly one).
+         */
+        private static final Name[][] byLength;
+
+        static {
+            Name[] names = values();
+            int maxLength = 0;
+            for (Name name : names) {
+                maxLength = Math.max(maxLength, name.literal.length());
+            }
+            byLength = new Name[maxLength + 1][];
+            for (Name name : names) {
+                Name[] candidates = byLength[name.literal.length()];
+                if (candidates == null) {
+                    candidates = new Name[]{name};
+                } else {
+                    candidates = Arrays.copyOf(candidates, candidates.length + 1);
+                    candidates[candidates.length - 1] = name;
+                }
+                byLength[name.literal.length()] = candidates;
+            }
+        }
+
         private final String literal;
+        private final byte[] lowerCaseLiteral;
 
         private Name(String literal) {
             this.literal = literal;
+            this.lowerCaseLiteral = literal.toLowerCase(Locale.ENGLISH).getBytes(CharsetUtil.US_ASCII);
         }
 
         public static Name fromLiteral(String literal) {
-            for (Name name : values()) {
+            int length = literal.length();
+            if (length >= byLength.length || byLength[length] == null) {
+                return null;
+            }
+            for (Name name : byLength[length]) {
                 if (name.literal.equalsIgnoreCase(literal)) {
                     return name;
                 }
@@ -77,6 +109,42 @@ public class EslHeaders {
             return null;
         }
 
+        /**
+         * As {@link #fromLiteral(String)}, but reading the literal straight
+         * from the bytes of a received frame.
+         *
+         * @param buffer the frame
+         * @param index  first byte of the header name
+         * @param length length of the header name
+         * @return the matching name, or null if it is not a known header
+         */
+        public static Name fromLiteral(ChannelBuffer buffer, int index, int length) {
+            if (length >= byLength.length || byLength[length] == null) {
+                return null;
+            }
+            for (Name name : byLength[length]) {
+                if (name.matches(buffer, index)) {
+                    return name;
+                }
+            }
+
+            return null;
+        }
+
+        private boolean matches(ChannelBuffer buffer, int index) {
+            byte[] expected = lowerCaseLiteral;
+            for (int i = 0; i < expected.length; i++) {
+                int b = buffer.getByte(index + i);
+                if (b >= 'A' && b <= 'Z') {
+                    b += 'a' - 'A';
+                }
+                if (b != expected[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
         public String literal() {
             return literal;
         }
@@ -112,6 +180,10 @@ public class EslHeaders {
          * {@code "text/event-plain"}
          */
         public static final String TEXT_EVENT_PLAIN = "text/event-plain";
+        /**
+         * {@code "text/event-json"}
+         */
+        public static final String TEXT_EVENT_JSON = "text/event-json";
         /**
          * {@code "text/event-xml"}
          */
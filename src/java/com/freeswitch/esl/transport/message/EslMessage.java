@@ -16,9 +16,12 @@
 package com.freeswitch.esl.transport.message;
 
 import com.freeswitch.esl.transport.message.EslHeaders.Name;
+import com.freeswitch.netty.buffer.ChannelBuffer;
+import com.freeswitch.netty.util.CharsetUtil;
 
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
 
@@ -29,11 +32,12 @@ import java.util.Map;
  * An ESL message is modelled as text lines. A message always has one or more
  * header lines, and optionally may have some body lines.
  * <p>
- * Header lines are parsed and cached in a map keyed by the
- * {@link EslHeaders.Name} enum. A message is always expected to have a
- * "Content-Type" header
+ * The message holds a single slice of the received frame plus a table of
+ * offsets into it for each header value and each body line. No strings are
+ * created by the decoder; a header value or body line is decoded the first
+ * time it is asked for and cached from then on.
  * <p>
- * Any Body lines are cached in a list.
+ * A message is always expected to have a "Content-Type" header
  *
  * @author david varnes
  * @see EslHeaders.Name
@@ -41,19 +45,49 @@ import java.util.Map;
 public class EslMessage {
 //	private final Logger log = LoggerFactory.getLogger(this.getClass());
 
-    private final Map<Name, String> headers = new HashMap<Name, String>();
-    private final List<String> body = new ArrayList<String>();
+    private static final Name[] NAMES = Name.values();
 
-    private Integer contentLength = null;
+    /*
+     * start/end pairs relative to the frame, indexed by header name ordinal
+     * for headers and by line number for body lines
+     */
+    private final int[] headerOffsets = new int[NAMES.length * 2];
+    private int[] lineOffsets = new int[16];
+    private int headerCount;
+    private int lineCount;
+    private int contentLength = -1;
+    private ChannelBuffer frame;
+
+    private final String[] headerValues = new String[NAMES.length];
+    private Map<Name, String> headers;
+    private List<String> body;
+
+    /**
+     * An empty message, filled in by the {@link EslFrameDecoder} as it
+     * decodes a frame.
+     */
+    public EslMessage() {
+        Arrays.fill(headerOffsets, -1);
+    }
 
     /**
      * All the received message headers in a map keyed by
      * {@link EslHeaders.Name}. The string mapped value is the parsed content of
      * the header line (ie, it does not include the header name).
      *
-     * @return map of header values
+     * @return read-only map of header values
      */
     public Map<Name, String> getHeaders() {
+        Map<Name, String> headers = this.headers;
+        if (headers == null) {
+            headers = new EnumMap<Name, String>(Name.class);
+            for (Name name : NAMES) {
+                if (hasHeader(name)) {
+                    headers.put(name, getHeaderValue(name));
+                }
+            }
+            this.headers = headers = Collections.unmodifiableMap(headers);
+        }
         return headers;
     }
 
@@ -65,7 +99,7 @@ public class EslMessage {
      * header name
      */
     public boolean hasHeader(Name headerName) {
-        return headers.containsKey(headerName);
+        return headerOffsets[headerName.ordinal() * 2] >= 0;
     }
 
     /**
@@ -75,7 +109,35 @@ public class EslMessage {
      * @return same as getHeaders().get( headerName )
      */
     public String getHeaderValue(Name headerName) {
-        return headers.get(headerName);
+        int ordinal = headerName.ordinal();
+        String value = headerValues[ordinal];
+        if (value == null && hasHeader(headerName)) {
+            value = lineAt(headerOffsets, ordinal);
+            headerValues[ordinal] = value;
+        }
+        return value;
+    }
+
+    /**
+     * Convenience method, compares the value without decoding it.
+     *
+     * @param headerName as a {@link EslHeaders.Name}
+     * @param value      an ASCII header value
+     * @return true if and only if the header is present with exactly that
+     * value
+     */
+    public boolean hasHeaderValue(Name headerName, String value) {
+        int i = headerName.ordinal() * 2;
+        int start = headerOffsets[i];
+        if (start < 0 || headerOffsets[i + 1] - start != value.length()) {
+            return false;
+        }
+        for (int j = 0; j < value.length(); j++) {
+            if (frame.getByte(start + j) != value.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
@@ -84,7 +146,7 @@ public class EslMessage {
      * @return true if and only if a header exists with name "Content-Length"
      */
     public boolean hasContentLength() {
-        return headers.containsKey(Name.CONTENT_LENGTH);
+        return contentLength >= 0;
     }
 
     /**
@@ -93,13 +155,7 @@ public class EslMessage {
      * @return integer value of header with name "Content-Length"
      */
     public Integer getContentLength() {
-        if (contentLength != null) {
-            return contentLength;
-        }
-        if (hasContentLength()) {
-            contentLength = Integer.valueOf(headers.get(Name.CONTENT_LENGTH));
-        }
-        return contentLength;
+        return hasContentLength() ? contentLength : null;
     }
 
     /**
@@ -108,39 +164,94 @@ public class EslMessage {
      * @return header value of header with name "Content-Type"
      */
     public String getContentType() {
-        return headers.get(Name.CONTENT_TYPE);
+        return getHeaderValue(Name.CONTENT_TYPE);
     }
 
     /**
      * Any received message body lines
      *
-     * @return list with a string for each line received, may be an empty list
+     * @return read-only list with a string for each line received, may be an
+     * empty list
      */
     public List<String> getBodyLines() {
+        List<String> body = this.body;
+        if (body == null) {
+            String[] lines = new String[lineCount];
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = lineAt(lineOffsets, i);
+            }
+            this.body = body = Collections.unmodifiableList(Arrays.asList(lines));
+        }
         return body;
     }
 
     /**
-     * Used by the {@link EslMessageDecoder}.
+     * Convenience method
+     *
+     * @return the number of body lines, without decoding them
+     */
+    public int getBodyLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Used by the {@link EslFrameDecoder}.
      *
      * @param name
-     * @param value
+     * @param start offset of the value in the frame
+     * @param end   offset just after the value in the frame
      */
-    void addHeader(Name name, String value) {
+    void addHeader(Name name, int start, int end) {
 //		log.debug("adding header [{}] [{}]", name, value);
-        headers.put(name, value);
+        int i = name.ordinal() * 2;
+        if (headerOffsets[i] < 0) {
+            headerCount++;
+        }
+        headerOffsets[i] = start;
+        headerOffsets[i + 1] = end;
     }
 
     /**
-     * Used by the {@link EslMessageDecoder}
+     * Used by the {@link EslFrameDecoder}
      *
-     * @param line
+     * @param start offset of the line in the frame
+     * @param end   offset of the line feed (or end of frame) in the frame
      */
-    void addBodyLine(String line) {
-        if (line == null) {
-            return;
+    void addBodyLine(int start, int end) {
+        int i = lineCount * 2;
+        if (i == lineOffsets.length) {
+            lineOffsets = Arrays.copyOf(lineOffsets, i * 2);
+        }
+        lineOffsets[i] = start;
+        lineOffsets[i + 1] = end;
+        lineCount++;
+    }
+
+    /**
+     * Used by the {@link EslFrameDecoder}
+     *
+     * @param contentLength
+     */
+    void setContentLength(int contentLength) {
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * Used by the {@link EslFrameDecoder}, once the whole frame is available.
+     *
+     * @param frame slice covering the headers and body of this message
+     */
+    void setFrame(ChannelBuffer frame) {
+        this.frame = frame;
+    }
+
+    private String lineAt(int[] offsets, int index) {
+        int start = offsets[index * 2];
+        int end = offsets[index * 2 + 1];
+        if (start == end) {
+            return "";
         }
-        body.add(line);
+        return frame.toString(start, end - start, CharsetUtil.UTF_8);
     }
 
     @Override
@@ -148,9 +259,9 @@ public class EslMessage {
         StringBuilder sb = new StringBuilder("EslMessage: contentType=[");
         sb.append(getContentType());
         sb.append("] headers=");
-        sb.append(headers.size());
+        sb.append(headerCount);
         sb.append(", body=");
-        sb.append(body.size());
+        sb.append(lineCount);
         sb.append(" lines.");
 
         return sb.toString();
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2010 david varnes.
+ *
+ * Licensed under the Apache License, version 2.0 (the "License"); 
+ * you may not use this file except in compliance with the License. 
+ * You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, 
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.freeswitch.esl.transport.message;
+
+import com.freeswitch.netty.buffer.ChannelBuffer;
+import com.freeswitch.netty.buffer.ChannelBuffers;
+import com.freeswitch.netty.channel.*;
+import com.freeswitch.netty.channel.socket.nio.NioSocketChannel;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downstream handler used by the IO processing pipeline to coalesce the
+ * encoded commands written to a channel. Client consumers should never need
+ * to use this class, other than to read its statistics.
+ * <p>
+ * Writes are queued rather than passed down one by one. The first write of a
+ * batch schedules a flush task on the IO thread of the channel, which runs
+ * after the IO thread has finished its current round of reads. All the
+ * commands queued by then, from any thread, are sent down as one composite
+ * buffer, which the NIO worker copies into one pooled send buffer and writes
+ * with a single socket write. The futures of the individual writes complete
+ * with that write.
+ * <p>
+ * Must be placed in the pipeline below the encoder, so that it sees encoded
+ * {@link ChannelBuffer}s.
+ */
+public class EslWriteCoalescer extends SimpleChannelHandler {
+    private final Queue<MessageEvent> queue = new ConcurrentLinkedQueue<MessageEvent>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    private final AtomicLong commandCount = new AtomicLong();
+    private final AtomicLong writeCount = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    @Override
+    public void writeRequested(final ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        queue.add(e);
+        if (flushScheduled.compareAndSet(false, true)) {
+            Runnable flushTask = new Runnable() {
+                public void run() {
+                    flush(ctx);
+                }
+            };
+            Channel channel = ctx.getChannel();
+            if (channel instanceof NioSocketChannel) {
+                // always queue behind the reads in progress, even from the IO thread
+                ((NioSocketChannel) channel).getWorker().executeInIoThread(flushTask, true);
+            } else {
+                ctx.getPipeline().execute(flushTask);
+            }
+        }
+    }
+
+    @Override
+    public void disconnectRequested(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        try {
+            flush(ctx);
+        } finally {
+            ctx.sendDownstream(e);
+        }
+    }
+
+    @Override
+    public void closeRequested(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        try {
+            flush(ctx);
+        } finally {
+            ctx.sendDownstream(e);
+        }
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        ClosedChannelException cause = null;
+        MessageEvent pending;
+        while ((pending = queue.poll()) != null) {
+            if (cause == null) {
+                cause = new ClosedChannelException();
+            }
+            pending.getFuture().setFailure(cause);
+        }
+        super.channelClosed(ctx, e);
+    }
+
+    /**
+     * @return the number of commands (write requests) passed to this handler
+     */
+    public long getCommandCount() {
+        return commandCount.get();
+    }
+
+    /**
+     * @return the number of writes sent down to the socket
+     */
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    /**
+     * @return the number of bytes sent down to the socket
+     */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * @return the average number of bytes per socket write, or 0 if nothing
+     * has been written yet
+     */
+    public double getBytesPerWrite() {
+        long writes = writeCount.get();
+        return writes == 0 ? 0 : (double) bytesWritten.get() / writes;
+    }
+
+    private synchronized void flush(ChannelHandlerContext ctx) {
+        // allow the next write to schedule another flush before draining,
+        // so that nothing queued from now on can be missed
+        flushScheduled.set(false);
+        List<MessageEvent> batch = new ArrayList<MessageEvent>();
+        MessageEvent e;
+        while ((e = queue.poll()) != null) {
+            if (e.getMessage() instanceof ChannelBuffer) {
+                batch.add(e);
+            } else {
+                batch = write(ctx, batch);
+                ctx.sendDownstream(e);
+            }
+        }
+        write(ctx, batch);
+    }
+
+    private List<MessageEvent> write(ChannelHandlerContext ctx, final List<MessageEvent> batch) {
+        int size = batch.size();
+        if (size == 0) {
+            return batch;
+        }
+        commandCount.addAndGet(size);
+        writeCount.incrementAndGet();
+        if (size == 1) {
+            MessageEvent e = batch.get(0);
+            bytesWritten.addAndGet(((ChannelBuffer) e.getMessage()).readableBytes());
+            ctx.sendDownstream(e);
+            return new ArrayList<MessageEvent>();
+        }
+
+        ChannelBuffer[] buffers = new ChannelBuffer[size];
+        for (int i = 0; i < size; i++) {
+            buffers[i] = (ChannelBuffer) batch.get(i).getMessage();
+        }
+        ChannelBuffer composite = ChannelBuffers.wrappedBuffer(buffers);
+        bytesWritten.addAndGet(composite.readableBytes());
+        ChannelFuture future = Channels.future(ctx.getChannel());
+        future.addListener(new ChannelFutureListener() {
+            public void operationComplete(ChannelFuture future) {
+                for (MessageEvent e : batch) {
+                    if (future.isSuccess()) {
+                        e.getFuture().setSuccess();
+                    } else {
+                        e.getFuture().setFailure(future.getCause());
+                    }
+                }
+            }
+        });
+        Channels.write(ctx, future, composite);
+        return new ArrayList<MessageEvent>();
+    }
+}